@@ -0,0 +1,171 @@
+package com.s16.widget;
+
+import java.util.List;
+
+import com.s16.widget.PassCodeKeyboard.Key;
+
+/**
+ * The hit test as it was before the lookup table, ported from the original
+ * PassCodeKeyboardView and its inner Keyboard: a 3x4 grid of neighbor lists built lazily
+ * on the first touch after a layout change, and a scan of the cell's neighbors that sorts
+ * the codes with {@link System#arraycopy}. Kept as the baseline the lookup table is
+ * measured against.
+ */
+final class BaselineKeyboard {
+
+	private static final int GRID_WIDTH = PassCodeKeyboard.GRID_WIDTH;
+	private static final int GRID_HEIGHT = PassCodeKeyboard.GRID_HEIGHT;
+	private static final int GRID_SIZE = GRID_WIDTH * GRID_HEIGHT;
+	private static final float SEARCH_DISTANCE = 1.4f;
+
+	private final PassCodeKeyboard mKeyboard;
+	private final Key[] mKeys;
+	/** Threshold of the view, computed once when the keyboard was set */
+	private final int mProximityThreshold;
+	private final int[] mDistances = new int[PassCodeKeyboard.MAX_NEARBY_KEYS];
+
+	private int mCellWidth;
+	private int mCellHeight;
+	private int[][] mGridNeighbors;
+
+	/**
+	 * Wraps the keys of a keyboard. The key geometry is read from the keys, so it follows
+	 * {@link PassCodeKeyboard#resize(int, int)} once {@link #resize()} has been called. The
+	 * view's proximity threshold is taken from the keys as they are now, like the view did
+	 * when the keyboard was set.
+	 */
+	BaselineKeyboard(PassCodeKeyboard keyboard) {
+		mKeyboard = keyboard;
+		final List<Key> keys = keyboard.getKeys();
+		mKeys = keys.toArray(new Key[keys.size()]);
+		int dimensionSum = 0;
+		for (int i = 0; i < mKeys.length; i++) {
+			dimensionSum += Math.min(mKeys[i].width, mKeys[i].height) + mKeys[i].gap;
+		}
+		final int threshold = (int) (dimensionSum * 1.4f / mKeys.length);
+		mProximityThreshold = threshold * threshold;
+	}
+
+	/**
+	 * Drops the neighbor grid after the keyboard was resized, it is rebuilt on the next touch.
+	 */
+	void resize() {
+		mGridNeighbors = null;
+	}
+
+	private void computeNearestNeighbors() {
+		final Key[] keys = mKeys;
+		// The keyboard's own threshold, from the current key width
+		int gridThreshold = (int) (keys[0].width * SEARCH_DISTANCE);
+		gridThreshold = gridThreshold * gridThreshold;
+		// Round-up so we don't have any pixels outside the grid
+		mCellWidth = (mKeyboard.getMinWidth() + GRID_WIDTH - 1) / GRID_WIDTH;
+		mCellHeight = (mKeyboard.getHeight() + GRID_HEIGHT - 1) / GRID_HEIGHT;
+		mGridNeighbors = new int[GRID_SIZE][];
+		int[] indices = new int[keys.length];
+		final int gridWidth = GRID_WIDTH * mCellWidth;
+		final int gridHeight = GRID_HEIGHT * mCellHeight;
+		for (int x = 0; x < gridWidth; x += mCellWidth) {
+			for (int y = 0; y < gridHeight; y += mCellHeight) {
+				int count = 0;
+				for (int i = 0; i < keys.length; i++) {
+					final Key key = keys[i];
+					if (squaredDistanceFrom(key, x, y) < gridThreshold ||
+							squaredDistanceFrom(key, x + mCellWidth - 1, y) < gridThreshold ||
+							squaredDistanceFrom(key, x + mCellWidth - 1, y + mCellHeight - 1)
+								< gridThreshold ||
+							squaredDistanceFrom(key, x, y + mCellHeight - 1) < gridThreshold) {
+						indices[count++] = i;
+					}
+				}
+				int [] cell = new int[count];
+				System.arraycopy(indices, 0, cell, 0, count);
+				mGridNeighbors[(y / mCellHeight) * GRID_WIDTH + (x / mCellWidth)] = cell;
+			}
+		}
+	}
+
+	int[] getNearestKeys(int x, int y) {
+		if (mGridNeighbors == null) computeNearestNeighbors();
+		if (x >= 0 && x < mKeyboard.getMinWidth() && y >= 0 && y < mKeyboard.getHeight()) {
+			int index = (y / mCellHeight) * GRID_WIDTH + (x / mCellWidth);
+			if (index < GRID_SIZE) {
+				return mGridNeighbors[index];
+			}
+		}
+		return new int[0];
+	}
+
+	int getKeyIndices(int x, int y, int[] allKeys, boolean proximityCorrectOn) {
+		final Key[] keys = mKeys;
+		int primaryIndex = PassCodeKeyboard.NOT_A_KEY;
+		int closestKey = PassCodeKeyboard.NOT_A_KEY;
+		int closestKeyDist = mProximityThreshold + 1;
+		java.util.Arrays.fill(mDistances, Integer.MAX_VALUE);
+		int [] nearestKeyIndices = getNearestKeys(x, y);
+		final int keyCount = nearestKeyIndices.length;
+
+		for (int i = 0; i < keyCount; i++) {
+			final Key key = keys[nearestKeyIndices[i]];
+			int dist = 0;
+			boolean isInside = isInside(key, x, y);
+			if (((proximityCorrectOn
+					&& (dist = squaredDistanceFrom(key, x, y)) < mProximityThreshold)
+					|| isInside)
+					&& key.codes[0] > 32) {
+				// Find insertion point
+				final int nCodes = key.codes.length;
+				if (dist < closestKeyDist) {
+					closestKeyDist = dist;
+					closestKey = nearestKeyIndices[i];
+				}
+
+				if (allKeys == null) continue;
+
+				for (int j = 0; j < mDistances.length; j++) {
+					if (mDistances[j] > dist) {
+						// Make space for nCodes codes
+						System.arraycopy(mDistances, j, mDistances, j + nCodes,
+								mDistances.length - j - nCodes);
+						System.arraycopy(allKeys, j, allKeys, j + nCodes,
+								allKeys.length - j - nCodes);
+						for (int c = 0; c < nCodes; c++) {
+							allKeys[j + c] = key.codes[c];
+							mDistances[j + c] = dist;
+						}
+						break;
+					}
+				}
+			}
+
+			if (isInside) {
+				primaryIndex = nearestKeyIndices[i];
+			}
+		}
+		if (primaryIndex == PassCodeKeyboard.NOT_A_KEY) {
+			primaryIndex = closestKey;
+		}
+		return primaryIndex;
+	}
+
+	private static boolean isInside(Key key, int x, int y) {
+		boolean leftEdge = (key.edgeFlags & PassCodeKeyboard.EDGE_LEFT) > 0;
+		boolean rightEdge = (key.edgeFlags & PassCodeKeyboard.EDGE_RIGHT) > 0;
+		boolean topEdge = (key.edgeFlags & PassCodeKeyboard.EDGE_TOP) > 0;
+		boolean bottomEdge = (key.edgeFlags & PassCodeKeyboard.EDGE_BOTTOM) > 0;
+		if ((x >= key.x || (leftEdge && x <= key.x + key.width))
+				&& (x < key.x + key.width || (rightEdge && x >= key.x))
+				&& (y >= key.y || (topEdge && y <= key.y + key.height))
+				&& (y < key.y + key.height || (bottomEdge && y >= key.y))) {
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	private static int squaredDistanceFrom(Key key, int x, int y) {
+		int xDist = key.x + key.width / 2 - x;
+		int yDist = key.y + key.height / 2 - y;
+		return xDist * xDist + yDist * yDist;
+	}
+}
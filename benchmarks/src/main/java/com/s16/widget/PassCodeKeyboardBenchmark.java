@@ -0,0 +1,126 @@
+package com.s16.widget;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of resolving a touch to a key, with the lookup table of {@link PassCodeKeyboard}
+ * and with the neighbor grid it replaced.
+ *
+ * Keyboards range from a small phone to a large tablet. Touches are either spread over
+ * the whole keyboard, or placed near key boundaries where the lookup table has to fall
+ * back to an exact test.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PassCodeKeyboardBenchmark {
+
+	private static final int TOUCH_COUNT = 1024;
+
+	/** Width of the keyboard, the height is 4/3 of it */
+	@Param({ "320", "720", "1080", "1600" })
+	public int width;
+
+	@Param({ "uniform", "boundary" })
+	public String touches;
+
+	@Param({ "true", "false" })
+	public boolean proximityCorrection;
+
+	private PassCodeKeyboard mKeyboard;
+	private BaselineKeyboard mBaseline;
+	private final int[] mTouchX = new int[TOUCH_COUNT];
+	private final int[] mTouchY = new int[TOUCH_COUNT];
+	private final int[] mCodes = new int[PassCodeKeyboard.MAX_NEARBY_KEYS];
+	private int mNext;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		final int height = width * 4 / 3;
+		// Created wider than the view, like on a device, so resize() fits it
+		mKeyboard = new PassCodeKeyboard(width * 2);
+		mBaseline = new BaselineKeyboard(mKeyboard);
+		mKeyboard.setProximityCorrectionEnabled(proximityCorrection);
+		mKeyboard.resize(width, height);
+		mBaseline.resize();
+
+		final Random random = new Random(42);
+		final int keyWidth = width / PassCodeKeyboard.GRID_WIDTH;
+		final int keyHeight = height / PassCodeKeyboard.GRID_HEIGHT;
+		for (int i = 0; i < TOUCH_COUNT; i++) {
+			if ("boundary".equals(touches)) {
+				// Within a few pixels of a key edge
+				final int column = random.nextInt(PassCodeKeyboard.GRID_WIDTH + 1);
+				final int row = random.nextInt(PassCodeKeyboard.GRID_HEIGHT + 1);
+				mTouchX[i] = clamp(column * keyWidth + random.nextInt(9) - 4, width);
+				mTouchY[i] = clamp(row * keyHeight + random.nextInt(9) - 4, height);
+			} else {
+				mTouchX[i] = random.nextInt(width);
+				mTouchY[i] = random.nextInt(height);
+			}
+		}
+	}
+
+	private static int clamp(int value, int size) {
+		return Math.max(0, Math.min(size - 1, value));
+	}
+
+	private int nextTouch() {
+		return mNext = (mNext + 1) & (TOUCH_COUNT - 1);
+	}
+
+	@Benchmark
+	public int lookupTable() {
+		final int i = nextTouch();
+		return mKeyboard.getKeyIndices(mTouchX[i], mTouchY[i], null);
+	}
+
+	@Benchmark
+	public int lookupTableWithCodes() {
+		final int i = nextTouch();
+		return mKeyboard.getKeyIndices(mTouchX[i], mTouchY[i], mCodes);
+	}
+
+	@Benchmark
+	public int baseline() {
+		final int i = nextTouch();
+		return mBaseline.getKeyIndices(mTouchX[i], mTouchY[i], null, proximityCorrection);
+	}
+
+	@Benchmark
+	public int baselineWithCodes() {
+		final int i = nextTouch();
+		return mBaseline.getKeyIndices(mTouchX[i], mTouchY[i], mCodes, proximityCorrection);
+	}
+
+	@Benchmark
+	public int[] nearestKeys() {
+		final int i = nextTouch();
+		return mKeyboard.getNearestKeys(mTouchX[i], mTouchY[i]);
+	}
+
+	/** Building the lookup table, done on every layout change */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public PassCodeKeyboard computeNearestNeighbors() {
+		mKeyboard.computeNearestNeighbors();
+		return mKeyboard;
+	}
+}
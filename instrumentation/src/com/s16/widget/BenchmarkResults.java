@@ -0,0 +1,62 @@
+package com.s16.widget;
+
+import java.util.Arrays;
+
+import android.app.Instrumentation;
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * Collects the results of a device benchmark, logs them and reports them as
+ * instrumentation status.
+ */
+final class BenchmarkResults {
+
+	private final String mTag;
+	private final Bundle mResults = new Bundle();
+
+	BenchmarkResults(String tag) {
+		mTag = tag;
+	}
+
+	/**
+	 * Adds the 50th, 90th and 99th percentiles of samples in nanoseconds, in milliseconds.
+	 * The samples are sorted in place.
+	 */
+	void putPercentiles(String name, long[] samples) {
+		Arrays.sort(samples);
+		mResults.putFloat(name + "-p50-ms", percentile(samples, 50));
+		mResults.putFloat(name + "-p90-ms", percentile(samples, 90));
+		mResults.putFloat(name + "-p99-ms", percentile(samples, 99));
+	}
+
+	void putLong(String name, long value) {
+		mResults.putLong(name, value);
+	}
+
+	void putFloat(String name, float value) {
+		mResults.putFloat(name, value);
+	}
+
+	void send(Instrumentation instrumentation) {
+		Log.i(mTag, mResults.toString());
+		instrumentation.sendStatus(0, mResults);
+	}
+
+	/**
+	 * Returns the bytes used on the Java heap once the garbage has been collected.
+	 */
+	static long usedHeapBytes() {
+		final Runtime runtime = Runtime.getRuntime();
+		runtime.gc();
+		runtime.runFinalization();
+		runtime.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static float percentile(long[] sorted, int percentile) {
+		int index = (int) Math.ceil(percentile / 100f * sorted.length) - 1;
+		index = Math.max(0, Math.min(sorted.length - 1, index));
+		return sorted[index] / 1000000f;
+	}
+}
@@ -0,0 +1,206 @@
+package com.s16.widget;
+
+import com.example.androidpasscode.MainActivity;
+
+import android.app.Activity;
+import android.content.Context;
+import android.graphics.Canvas;
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+import android.view.MotionEvent;
+import android.view.ViewGroup;
+import android.widget.LinearLayout;
+
+/**
+ * Compares the latency of a digit with {@link PassCodeKeyboardView#setCommitOnDown(boolean)}
+ * against the default commit on release, on a device.
+ *
+ * Touches are injected through the input pipeline, and the finger rests on the key for
+ * {@link #CONTACT_TIME} ms as a typing finger does. Both latencies are counted from the
+ * down event: until {@link PassCodeKeyboardView.OnKeyboardActionListener#onKey(int, int[])}
+ * gets the digit, and until the passcode view draws it. The percentiles are logged and
+ * reported as instrumentation status.
+ */
+public class CommitOnDownLatencyBenchmark extends ActivityInstrumentationTestCase2<MainActivity> {
+
+	private static final String TAG = "CommitOnDownBenchmark";
+	/** Time between the down and the up of a touch, in ms */
+	private static final int CONTACT_TIME = 80;
+	private static final int WARMUP = 10;
+	private static final int ITERATIONS = 100;
+	private static final int COLUMNS = 3;
+	private static final int ROWS = 4;
+	/** Cells of the digit keys, the last row holds delete, 0 and clear */
+	private static final int[] DIGIT_CELLS = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 10 };
+	private static final long TIMEOUT = 2000;
+	private static final long NANOS_PER_MILLI = 1000000L;
+
+	private PassCodeKeyboardView mKeyboard;
+	private TimedPassCodeView mPassCode;
+	private long mKeyNanos;
+
+	private final PassCodeKeyboardView.OnKeyboardActionListener mListener =
+			new PassCodeKeyboardView.OnKeyboardActionListener() {
+		@Override
+		public void onPress(int primaryCode) {
+		}
+
+		@Override
+		public void onRelease(int primaryCode) {
+		}
+
+		@Override
+		public void onKey(int primaryCode, int[] keyCodes) {
+			if (mKeyNanos == 0) {
+				mKeyNanos = System.nanoTime();
+			}
+		}
+
+		@Override
+		public void onF1Key(int primaryCode) {
+		}
+
+		@Override
+		public boolean onLongPress(int primaryCode) {
+			return false;
+		}
+	};
+
+	public CommitOnDownLatencyBenchmark() {
+		super(MainActivity.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		final Activity activity = getActivity();
+		getInstrumentation().runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				final LinearLayout page = new LinearLayout(activity);
+				page.setOrientation(LinearLayout.VERTICAL);
+				mPassCode = new TimedPassCodeView(activity);
+				mKeyboard = new PassCodeKeyboardView(activity, null);
+				mPassCode.setKeyboardView(mKeyboard);
+				// After the passcode view's own listener, so the digit is taken first
+				mKeyboard.addOnKeyboardActionListener(mListener);
+				page.addView(mPassCode, new LinearLayout.LayoutParams(
+						ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+				page.addView(mKeyboard, new LinearLayout.LayoutParams(
+						ViewGroup.LayoutParams.MATCH_PARENT, 0, 1));
+				activity.setContentView(page);
+			}
+		});
+		getInstrumentation().waitForIdleSync();
+	}
+
+	public void testCommitOnRelease() throws Throwable {
+		measure("release", false);
+	}
+
+	public void testCommitOnDown() throws Throwable {
+		measure("down", true);
+	}
+
+	private void measure(String name, final boolean commitOnDown) throws Throwable {
+		final int[] bounds = new int[4];
+		runTestOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				mKeyboard.setCommitOnDown(commitOnDown);
+				mKeyboard.getLocationOnScreen(bounds);
+				bounds[2] = mKeyboard.getWidth();
+				bounds[3] = mKeyboard.getHeight();
+			}
+		});
+		final long[] keySamples = new long[ITERATIONS];
+		final long[] frameSamples = new long[ITERATIONS];
+		for (int i = -WARMUP; i < ITERATIONS; i++) {
+			final int cell = DIGIT_CELLS[(i + WARMUP) % DIGIT_CELLS.length];
+			final float x = bounds[0] + (cell % COLUMNS + 0.5f) * bounds[2] / COLUMNS;
+			final float y = bounds[1] + (cell / COLUMNS + 0.5f) * bounds[3] / ROWS;
+			runTestOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					if (mPassCode.isPassCodeComplete()) {
+						mPassCode.clear();
+					}
+					mKeyNanos = 0;
+					mPassCode.mFrameNanos = 0;
+				}
+			});
+			// Let the frame of the cleared passcode go by
+			getInstrumentation().waitForIdleSync();
+			mPassCode.mAwaitingDigit = true;
+
+			final long downTime = SystemClock.uptimeMillis();
+			tap(downTime, x, y);
+			final long[] times = awaitFrame();
+			if (i >= 0) {
+				keySamples[i] = times[0] - downTime * NANOS_PER_MILLI;
+				frameSamples[i] = times[1] - downTime * NANOS_PER_MILLI;
+			}
+		}
+
+		final BenchmarkResults results = new BenchmarkResults(TAG);
+		results.putPercentiles(name + "-key", keySamples);
+		results.putPercentiles(name + "-frame", frameSamples);
+		results.send(getInstrumentation());
+	}
+
+	private void tap(long downTime, float x, float y) {
+		MotionEvent event = MotionEvent.obtain(downTime, downTime, MotionEvent.ACTION_DOWN, x, y, 0);
+		getInstrumentation().sendPointerSync(event);
+		event.recycle();
+		SystemClock.sleep(CONTACT_TIME);
+		final long upTime = SystemClock.uptimeMillis();
+		event = MotionEvent.obtain(downTime, upTime, MotionEvent.ACTION_UP, x, y, 0);
+		getInstrumentation().sendPointerSync(event);
+		event.recycle();
+	}
+
+	/**
+	 * Waits for the passcode view to draw the digit, and returns when the key was sent and
+	 * when it was drawn.
+	 */
+	private long[] awaitFrame() throws Throwable {
+		final long[] times = new long[2];
+		final long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+		while (SystemClock.uptimeMillis() < deadline) {
+			runTestOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					times[0] = mKeyNanos;
+					times[1] = mPassCode.mFrameNanos;
+				}
+			});
+			if (times[1] != 0) {
+				return times;
+			}
+			SystemClock.sleep(2);
+		}
+		fail("The digit was not drawn");
+		return null;
+	}
+
+	/**
+	 * Records when it first draws after a digit was sent.
+	 */
+	private class TimedPassCodeView extends SimplePassCodeView {
+		volatile boolean mAwaitingDigit;
+		long mFrameNanos;
+
+		TimedPassCodeView(Context context) {
+			super(context);
+		}
+
+		@Override
+		protected void onDraw(Canvas canvas) {
+			super.onDraw(canvas);
+			if (mAwaitingDigit && mKeyNanos != 0) {
+				mAwaitingDigit = false;
+				mFrameNanos = System.nanoTime();
+			}
+		}
+	}
+}
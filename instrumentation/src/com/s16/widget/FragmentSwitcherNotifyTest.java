@@ -0,0 +1,273 @@
+package com.s16.widget;
+
+import java.util.ArrayList;
+
+import com.example.androidpasscode.MainActivity;
+
+import android.app.Activity;
+import android.app.Fragment;
+import android.os.Bundle;
+import android.support.v13.app.FragmentPagerAdapter;
+import android.support.v13.app.FragmentStatePagerAdapter;
+import android.support.v4.view.PagerAdapter;
+import android.test.ActivityInstrumentationTestCase2;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+/**
+ * Inserts, removes and moves pages of a {@link FragmentSwitcher} backed by a real
+ * {@link FragmentPagerAdapter}, and checks that each position then shows the right fragment.
+ */
+public class FragmentSwitcherNotifyTest extends ActivityInstrumentationTestCase2<MainActivity> {
+
+	/** Container id of the switcher, fragment pages are added to it */
+	private static final int SWITCHER_ID = 0x00f5e002;
+	private static final String ARG_NAME = "name";
+
+	private FragmentSwitcher mSwitcher;
+	private PageAdapter mAdapter;
+
+	public FragmentSwitcherNotifyTest() {
+		super(MainActivity.class);
+	}
+
+	public void testInsertBeforeCurrentPage() throws Throwable {
+		setUpSwitcher(new StableIdAdapter(getActivity(), "A", "B"), 2);
+		runTestOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				final Fragment a = mSwitcher.getCurrentFragment();
+				assertEquals("A", nameOf(a));
+
+				mAdapter.insert(0, "C");
+				mSwitcher.notifyItemInserted(0);
+				assertEquals(1, mSwitcher.getCurrentItem());
+				assertSame(a, mSwitcher.getCurrentFragment());
+
+				switchTo(0);
+				assertEquals("C", nameOf(mSwitcher.getCurrentFragment()));
+				switchTo(1);
+				assertSame(a, mSwitcher.getCurrentFragment());
+				switchTo(2);
+				assertEquals("B", nameOf(mSwitcher.getCurrentFragment()));
+			}
+		});
+	}
+
+	public void testRemoveBeforeCurrentPage() throws Throwable {
+		setUpSwitcher(new StableIdAdapter(getActivity(), "A", "B", "C"), 2);
+		runTestOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				switchTo(1);
+				final Fragment b = mSwitcher.getCurrentFragment();
+				switchTo(2);
+				final Fragment c = mSwitcher.getCurrentFragment();
+
+				mAdapter.remove(0);
+				mSwitcher.notifyItemRemoved(0);
+				assertEquals(1, mSwitcher.getCurrentItem());
+				assertSame(c, mSwitcher.getCurrentFragment());
+
+				switchTo(0);
+				// Taken back from the cache under its new position
+				assertSame(b, mSwitcher.getCurrentFragment());
+				switchTo(1);
+				assertSame(c, mSwitcher.getCurrentFragment());
+			}
+		});
+	}
+
+	public void testRemoveCurrentPage() throws Throwable {
+		setUpSwitcher(new StableIdAdapter(getActivity(), "A", "B", "C"), 2);
+		runTestOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				switchTo(1);
+				final Fragment b = mSwitcher.getCurrentFragment();
+
+				mAdapter.remove(1);
+				mSwitcher.notifyItemRemoved(1);
+				// The page that took its place is shown
+				assertEquals(1, mSwitcher.getCurrentItem());
+				assertEquals("C", nameOf(mSwitcher.getCurrentFragment()));
+				assertTrue(b.isDetached() || !b.isAdded());
+
+				switchTo(0);
+				assertEquals("A", nameOf(mSwitcher.getCurrentFragment()));
+			}
+		});
+	}
+
+	public void testMoveCurrentPage() throws Throwable {
+		setUpSwitcher(new StableIdAdapter(getActivity(), "A", "B", "C"), 2);
+		runTestOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				final Fragment a = mSwitcher.getCurrentFragment();
+
+				mAdapter.move(0, 2);
+				mSwitcher.notifyItemMoved(0, 2);
+				assertEquals(2, mSwitcher.getCurrentItem());
+				assertSame(a, mSwitcher.getCurrentFragment());
+
+				switchTo(0);
+				assertEquals("B", nameOf(mSwitcher.getCurrentFragment()));
+				switchTo(1);
+				assertEquals("C", nameOf(mSwitcher.getCurrentFragment()));
+				switchTo(2);
+				assertSame(a, mSwitcher.getCurrentFragment());
+			}
+		});
+	}
+
+	public void testPositionalItemIdsAreRejected() throws Throwable {
+		setUpSwitcher(new PageAdapter(getActivity(), "A", "B"), 2);
+		runTestOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				mAdapter.insert(0, "C");
+				mSwitcher.notifyItemInserted(0);
+				try {
+					// The adapter finds the current page under the tag of position 0
+					switchTo(0);
+					fail();
+				} catch (IllegalStateException e) {
+				}
+			}
+		});
+	}
+
+	public void testFragmentStatePagerAdapterIsRejected() throws Throwable {
+		final Activity activity = getActivity();
+		runTestOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				final FragmentSwitcher switcher = new FragmentSwitcher(activity);
+				switcher.setId(SWITCHER_ID);
+				activity.setContentView(switcher);
+				switcher.setAdapter(new FragmentStatePagerAdapter(activity.getFragmentManager()) {
+					@Override
+					public Fragment getItem(int position) {
+						return PageFragment.newInstance(String.valueOf(position));
+					}
+
+					@Override
+					public int getCount() {
+						return 2;
+					}
+				});
+				try {
+					switcher.notifyItemInserted(0);
+					fail();
+				} catch (IllegalStateException e) {
+				}
+			}
+		});
+	}
+
+	private void setUpSwitcher(final PageAdapter adapter, final int cacheSize) throws Throwable {
+		final Activity activity = getActivity();
+		runTestOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				mAdapter = adapter;
+				mSwitcher = new FragmentSwitcher(activity);
+				mSwitcher.setId(SWITCHER_ID);
+				mSwitcher.setOffscreenPageCacheSize(cacheSize);
+				activity.setContentView(mSwitcher);
+				mSwitcher.setAdapter(adapter);
+			}
+		});
+		// Let the first layout create the first page
+		getInstrumentation().waitForIdleSync();
+	}
+
+	/** Switches right away instead of on the next frame */
+	private void switchTo(int item) {
+		mSwitcher.beginBatch();
+		mSwitcher.setCurrentItem(item);
+		mSwitcher.endBatch();
+	}
+
+	private static String nameOf(Fragment fragment) {
+		return fragment.getArguments().getString(ARG_NAME);
+	}
+
+	public static class PageFragment extends Fragment {
+		static PageFragment newInstance(String name) {
+			final PageFragment fragment = new PageFragment();
+			final Bundle args = new Bundle();
+			args.putString(ARG_NAME, name);
+			fragment.setArguments(args);
+			return fragment;
+		}
+
+		@Override
+		public View onCreateView(LayoutInflater inflater, ViewGroup container,
+				Bundle savedInstanceState) {
+			final TextView view = new TextView(getActivity());
+			view.setText(nameOf(this));
+			return view;
+		}
+	}
+
+	/**
+	 * Pages named by strings. Item ids are left to the default, the position.
+	 */
+	private static class PageAdapter extends FragmentPagerAdapter {
+		final ArrayList<String> mNames = new ArrayList<String>();
+
+		PageAdapter(Activity activity, String... names) {
+			super(activity.getFragmentManager());
+			for (int i = 0; i < names.length; i++) {
+				mNames.add(names[i]);
+			}
+		}
+
+		void insert(int position, String name) {
+			mNames.add(position, name);
+		}
+
+		void remove(int position) {
+			mNames.remove(position);
+		}
+
+		void move(int from, int to) {
+			mNames.add(to, mNames.remove(from));
+		}
+
+		@Override
+		public Fragment getItem(int position) {
+			return PageFragment.newInstance(mNames.get(position));
+		}
+
+		@Override
+		public int getCount() {
+			return mNames.size();
+		}
+
+		@Override
+		public int getItemPosition(Object object) {
+			final int position = mNames.indexOf(nameOf((Fragment) object));
+			return position >= 0 ? position : PagerAdapter.POSITION_NONE;
+		}
+	}
+
+	/**
+	 * Pages whose item id follows the page, as the incremental notifications require.
+	 */
+	private static class StableIdAdapter extends PageAdapter {
+		StableIdAdapter(Activity activity, String... names) {
+			super(activity, names);
+		}
+
+		@Override
+		public long getItemId(int position) {
+			// Names are single letters, unique within a test
+			return mNames.get(position).charAt(0);
+		}
+	}
+}
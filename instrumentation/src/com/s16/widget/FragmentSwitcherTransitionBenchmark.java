@@ -0,0 +1,173 @@
+package com.s16.widget;
+
+import com.example.androidpasscode.MainActivity;
+
+import android.app.Activity;
+import android.app.Fragment;
+import android.content.Context;
+import android.os.Bundle;
+import android.support.v13.app.FragmentPagerAdapter;
+import android.test.ActivityInstrumentationTestCase2;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.LinearLayout;
+
+/**
+ * Measures how long {@link FragmentSwitcher} takes to switch pages with a fragment adapter
+ * and with a view adapter, on a device.
+ *
+ * A transition is timed from {@link FragmentSwitcher#setCurrentItem(int)} until the new
+ * page is measured and laid out, fragment transaction included. Cold transitions create
+ * every page again, warm ones switch between cached pages. The percentiles are logged and
+ * reported as instrumentation status.
+ */
+public class FragmentSwitcherTransitionBenchmark extends ActivityInstrumentationTestCase2<MainActivity> {
+
+	private static final String TAG = "TransitionBenchmark";
+	private static final int PAGE_COUNT = 4;
+	private static final int WARMUP = 20;
+	private static final int ITERATIONS = 200;
+	/** Container id of the switcher, fragment pages are added to it */
+	private static final int SWITCHER_ID = 0x00f5e001;
+
+	public FragmentSwitcherTransitionBenchmark() {
+		super(MainActivity.class);
+	}
+
+	public void testFragmentPagesCold() throws Throwable {
+		report("fragment-cold", measure(true, 0));
+	}
+
+	public void testFragmentPagesWarm() throws Throwable {
+		report("fragment-warm", measure(true, PAGE_COUNT));
+	}
+
+	public void testViewPagesCold() throws Throwable {
+		report("view-cold", measure(false, 0));
+	}
+
+	public void testViewPagesWarm() throws Throwable {
+		report("view-warm", measure(false, PAGE_COUNT));
+	}
+
+	private long[] measure(final boolean fragments, final int cacheSize) throws Throwable {
+		final Activity activity = getActivity();
+		final FragmentSwitcher[] switcher = new FragmentSwitcher[1];
+		runTestOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				switcher[0] = new FragmentSwitcher(activity);
+				switcher[0].setId(SWITCHER_ID);
+				switcher[0].setOffscreenPageCacheSize(cacheSize);
+				activity.setContentView(switcher[0]);
+				if (fragments) {
+					switcher[0].setAdapter(new PageFragmentAdapter(activity));
+				} else {
+					switcher[0].setViewAdapter(new PageViewAdapter());
+				}
+			}
+		});
+		// Let the first layout happen, pages are switched synchronously afterwards
+		getInstrumentation().waitForIdleSync();
+
+		final long[] samples = new long[ITERATIONS];
+		runTestOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				final FragmentSwitcher s = switcher[0];
+				final int widthSpec = View.MeasureSpec.makeMeasureSpec(s.getWidth(),
+						View.MeasureSpec.EXACTLY);
+				final int heightSpec = View.MeasureSpec.makeMeasureSpec(s.getHeight(),
+						View.MeasureSpec.EXACTLY);
+				s.resetCounters();
+				for (int i = -WARMUP; i < ITERATIONS; i++) {
+					final int page = (s.getCurrentItem() + 1) % PAGE_COUNT;
+					final long start = System.nanoTime();
+					s.beginBatch();
+					s.setCurrentItem(page);
+					s.endBatch();
+					s.measure(widthSpec, heightSpec);
+					s.layout(s.getLeft(), s.getTop(), s.getRight(), s.getBottom());
+					final long elapsed = System.nanoTime() - start;
+					if (i >= 0) {
+						samples[i] = elapsed;
+					}
+				}
+				if (!fragments) {
+					assertEquals(0, s.getTransactionCount());
+				}
+			}
+		});
+		return samples;
+	}
+
+	private void report(String name, long[] samples) {
+		final BenchmarkResults results = new BenchmarkResults(TAG);
+		results.putPercentiles(name, samples);
+		results.send(getInstrumentation());
+	}
+
+	/**
+	 * A passcode field above a keyboard, the content of the app's pages.
+	 */
+	static View createPage(Context context) {
+		final LinearLayout page = new LinearLayout(context);
+		page.setOrientation(LinearLayout.VERTICAL);
+		final SimplePassCodeView passcode = new SimplePassCodeView(context);
+		final PassCodeKeyboardView keyboard = new PassCodeKeyboardView(context, null);
+		passcode.setKeyboardView(keyboard);
+		page.addView(passcode, new LinearLayout.LayoutParams(
+				ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+		page.addView(keyboard, new LinearLayout.LayoutParams(
+				ViewGroup.LayoutParams.MATCH_PARENT, 0, 1));
+		return page;
+	}
+
+	public static class PageFragment extends Fragment {
+		@Override
+		public View onCreateView(LayoutInflater inflater, ViewGroup container,
+				Bundle savedInstanceState) {
+			return createPage(getActivity());
+		}
+	}
+
+	private static class PageFragmentAdapter extends FragmentPagerAdapter {
+		PageFragmentAdapter(Activity activity) {
+			super(activity.getFragmentManager());
+		}
+
+		@Override
+		public Fragment getItem(int position) {
+			return new PageFragment();
+		}
+
+		@Override
+		public int getCount() {
+			return PAGE_COUNT;
+		}
+	}
+
+	private static class PageViewAdapter extends BaseAdapter {
+		@Override
+		public int getCount() {
+			return PAGE_COUNT;
+		}
+
+		@Override
+		public Object getItem(int position) {
+			return null;
+		}
+
+		@Override
+		public long getItemId(int position) {
+			return position;
+		}
+
+		@Override
+		public View getView(int position, View convertView, ViewGroup parent) {
+			return convertView != null ? convertView : createPage(parent.getContext());
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package com.s16.widget;
+
+import java.util.Random;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+
+/**
+ * Runs a real {@link KeyRepeatTimer} on the main looper while other messages keep the main
+ * thread busy, and checks that the repeats stay on their deadlines instead of drifting.
+ *
+ * Repeats are due at start + delay + n * interval. The grid slot of a repeat is the last
+ * deadline before it ran. A repeat late by less than an interval still lands in its own
+ * slot, a timer that counts the next delay from when the repeat ran falls behind and
+ * leaves slots empty.
+ */
+public class KeyRepeatTimerJitterTest extends InstrumentationTestCase {
+
+	private static final int START_DELAY = 100;
+	private static final int INTERVAL = 50;
+	private static final int REPEATS = 40;
+	/** Longest busy message of the simulated load, under one interval */
+	private static final int MAX_BUSY = INTERVAL * 7 / 10;
+	/** Slots a loaded device may still miss, to GC pauses for instance */
+	private static final int ALLOWED_MISSES = 2;
+	private static final int KEY = 3;
+
+	private Handler mHandler;
+	private KeyRepeatTimer mTimer;
+	private long mStartTime;
+	private final long[] mRepeatTimes = new long[REPEATS * 2];
+	private int mRepeatCount;
+	private boolean mLoadRunning;
+	private final Random mRandom = new Random(42);
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mHandler = new Handler(Looper.getMainLooper());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		getInstrumentation().runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				mLoadRunning = false;
+				mHandler.removeCallbacksAndMessages(null);
+				if (mTimer != null) {
+					mTimer.cancelAll();
+				}
+			}
+		});
+		super.tearDown();
+	}
+
+	public void testRepeatsStayOnDeadlinesUnderLoad() throws Exception {
+		startRepeating(true);
+		awaitRepeats();
+
+		final int firstSlot = slotOf(mRepeatTimes[0]);
+		assertEquals("First repeat", 0, firstSlot);
+		int misses = 0;
+		for (int i = 1; i < mRepeatCount; i++) {
+			final int step = slotOf(mRepeatTimes[i]) - slotOf(mRepeatTimes[i - 1]);
+			assertTrue("Two repeats in one slot at " + i, step >= 1);
+			misses += step - 1;
+		}
+		assertTrue(misses + " slots missed", misses <= ALLOWED_MISSES);
+	}
+
+	public void testMissedRepeatsAreSkippedAfterAStall() throws Exception {
+		startRepeating(false);
+		// Block the main thread for three and a half intervals after the first repeats
+		final int stallAfter = 5;
+		mHandler.postAtTime(new Runnable() {
+			@Override
+			public void run() {
+				busyWait(INTERVAL * 7 / 2);
+			}
+		}, mStartTime + START_DELAY + stallAfter * INTERVAL + INTERVAL / 4);
+		awaitRepeats();
+
+		int skipped = 0;
+		for (int i = 1; i < mRepeatCount; i++) {
+			final int step = slotOf(mRepeatTimes[i]) - slotOf(mRepeatTimes[i - 1]);
+			// Never a burst of the repeats that were due during the stall
+			assertTrue("Two repeats in one slot at " + i, step >= 1);
+			skipped += step - 1;
+		}
+		assertTrue(skipped + " slots skipped", skipped >= 2 && skipped <= 3 + ALLOWED_MISSES);
+	}
+
+	private void startRepeating(final boolean withLoad) {
+		getInstrumentation().runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				mTimer = new KeyRepeatTimer(new KeyRepeatTimer.Callback() {
+					@Override
+					public void onRepeat(int keyIndex) {
+						if (mRepeatCount < mRepeatTimes.length) {
+							mRepeatTimes[mRepeatCount++] = SystemClock.uptimeMillis();
+						}
+					}
+
+					@Override
+					public void onLongPress(int keyIndex) {
+					}
+				});
+				mStartTime = SystemClock.uptimeMillis();
+				mTimer.startRepeat(KEY, mStartTime, START_DELAY, INTERVAL);
+				if (withLoad) {
+					mLoadRunning = true;
+					mHandler.post(mLoad);
+				}
+			}
+		});
+	}
+
+	/** Busy messages of random length with short random gaps, like a busy UI thread */
+	private final Runnable mLoad = new Runnable() {
+		@Override
+		public void run() {
+			if (!mLoadRunning) return;
+			busyWait(mRandom.nextInt(MAX_BUSY));
+			mHandler.postDelayed(this, mRandom.nextInt(10));
+		}
+	};
+
+	private void awaitRepeats() {
+		final long deadline = mStartTime + START_DELAY + INTERVAL * (REPEATS + 10);
+		while (SystemClock.uptimeMillis() < deadline) {
+			SystemClock.sleep(INTERVAL);
+			final boolean[] done = new boolean[1];
+			getInstrumentation().runOnMainSync(new Runnable() {
+				@Override
+				public void run() {
+					done[0] = mRepeatCount >= REPEATS;
+					if (done[0]) {
+						mLoadRunning = false;
+						mTimer.cancelAll();
+					}
+				}
+			});
+			if (done[0]) {
+				return;
+			}
+		}
+		fail("Only " + mRepeatCount + " repeats");
+	}
+
+	private int slotOf(long time) {
+		return (int) ((time - mStartTime - START_DELAY) / INTERVAL);
+	}
+
+	private static void busyWait(long millis) {
+		final long end = SystemClock.uptimeMillis() + millis;
+		while (SystemClock.uptimeMillis() < end) {
+			// Spin, the main thread is busy
+		}
+	}
+}
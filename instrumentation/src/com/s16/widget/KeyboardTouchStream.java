@@ -0,0 +1,180 @@
+package com.s16.widget;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import android.view.InputDevice;
+import android.view.MotionEvent;
+
+/**
+ * A synthetic stream of touch events over a {@link PassCodeKeyboardView}, for the tests and
+ * benchmarks that drive the view without a finger.
+ *
+ * The stream alternates single taps, whose move carries a few batched samples as a fast
+ * panel sends them, and two-finger rolls where the second finger lands before the first one
+ * lifts. Touches land near the centres of a 3 by 4 grid over the view, the layout of the
+ * keyboard. Events are obtained up front, so replaying them allocates nothing, and must be
+ * given back with {@link #recycle()}.
+ */
+final class KeyboardTouchStream {
+
+	private static final int COLUMNS = 3;
+	private static final int ROWS = 4;
+	/** Samples batched into each move */
+	private static final int HISTORY_SIZE = 3;
+	private static final int EVENT_SPACING = 8;
+	private static final int GESTURE_SPACING = 120;
+
+	private final MotionEvent[] mEvents;
+	private final int mTapCount;
+	private final int mDownCount;
+
+	private final int mWidth;
+	private final int mHeight;
+	private final Random mRandom;
+	private final MotionEvent.PointerProperties[] mProperties;
+	private final MotionEvent.PointerCoords[] mCoords;
+
+	/**
+	 * @param width width of the view
+	 * @param height height of the view
+	 * @param gestures number of gestures, every other one a two-finger roll
+	 * @param startTime uptime of the first event
+	 * @param seed seed of the touch positions
+	 */
+	KeyboardTouchStream(int width, int height, int gestures, long startTime, long seed) {
+		mWidth = width;
+		mHeight = height;
+		mRandom = new Random(seed);
+		mProperties = new MotionEvent.PointerProperties[2];
+		mCoords = new MotionEvent.PointerCoords[2];
+		for (int i = 0; i < 2; i++) {
+			mProperties[i] = new MotionEvent.PointerProperties();
+			mProperties[i].id = i;
+			mProperties[i].toolType = MotionEvent.TOOL_TYPE_FINGER;
+			mCoords[i] = new MotionEvent.PointerCoords();
+			mCoords[i].pressure = 1f;
+			mCoords[i].size = 1f;
+		}
+
+		final ArrayList<MotionEvent> events = new ArrayList<MotionEvent>();
+		int taps = 0;
+		long time = startTime;
+		for (int g = 0; g < gestures; g++) {
+			if (g % 2 == 0) {
+				addTap(events, time);
+				taps++;
+			} else {
+				addRoll(events, time);
+				taps += 2;
+			}
+			time += GESTURE_SPACING;
+		}
+		mEvents = events.toArray(new MotionEvent[events.size()]);
+		mTapCount = taps;
+		int downs = 0;
+		for (int i = 0; i < mEvents.length; i++) {
+			final int action = mEvents[i].getActionMasked();
+			if (action == MotionEvent.ACTION_DOWN || action == MotionEvent.ACTION_POINTER_DOWN) {
+				downs++;
+			}
+		}
+		mDownCount = downs;
+	}
+
+	MotionEvent[] getEvents() {
+		return mEvents;
+	}
+
+	/** Number of fingers that touch the keyboard and lift, each one a key sent */
+	int getTapCount() {
+		return mTapCount;
+	}
+
+	int getDownCount() {
+		return mDownCount;
+	}
+
+	void recycle() {
+		for (int i = 0; i < mEvents.length; i++) {
+			mEvents[i].recycle();
+		}
+	}
+
+	private void addTap(ArrayList<MotionEvent> events, long downTime) {
+		final int cell = mRandom.nextInt(COLUMNS * ROWS);
+		long time = downTime;
+		setTouch(0, cell);
+		events.add(obtain(downTime, time, MotionEvent.ACTION_DOWN, 1));
+
+		time += EVENT_SPACING;
+		nudge(0);
+		final MotionEvent move = obtain(downTime, time, MotionEvent.ACTION_MOVE, 1);
+		for (int h = 0; h < HISTORY_SIZE; h++) {
+			time += EVENT_SPACING;
+			nudge(0);
+			move.addBatch(time, copyCoords(1), 0);
+		}
+		events.add(move);
+
+		time += EVENT_SPACING;
+		events.add(obtain(downTime, time, MotionEvent.ACTION_UP, 1));
+	}
+
+	private void addRoll(ArrayList<MotionEvent> events, long downTime) {
+		long time = downTime;
+		setTouch(0, mRandom.nextInt(COLUMNS * ROWS));
+		events.add(obtain(downTime, time, MotionEvent.ACTION_DOWN, 1));
+
+		time += EVENT_SPACING;
+		setTouch(1, mRandom.nextInt(COLUMNS * ROWS));
+		events.add(obtain(downTime, time, pointerAction(MotionEvent.ACTION_POINTER_DOWN, 1), 2));
+
+		time += EVENT_SPACING;
+		nudge(0);
+		nudge(1);
+		events.add(obtain(downTime, time, MotionEvent.ACTION_MOVE, 2));
+
+		// The first finger lifts, the second one is left as pointer index 0
+		time += EVENT_SPACING;
+		events.add(obtain(downTime, time, pointerAction(MotionEvent.ACTION_POINTER_UP, 0), 2));
+
+		time += EVENT_SPACING;
+		mProperties[0].id = 1;
+		mCoords[0].x = mCoords[1].x;
+		mCoords[0].y = mCoords[1].y;
+		events.add(obtain(downTime, time, MotionEvent.ACTION_UP, 1));
+		mProperties[0].id = 0;
+	}
+
+	private static int pointerAction(int action, int pointerIndex) {
+		return action | (pointerIndex << MotionEvent.ACTION_POINTER_INDEX_SHIFT);
+	}
+
+	private void setTouch(int pointer, int cell) {
+		final float cellWidth = mWidth / (float) COLUMNS;
+		final float cellHeight = mHeight / (float) ROWS;
+		// Within the middle half of the cell, clear of the gaps between keys
+		mCoords[pointer].x = (cell % COLUMNS + 0.25f + mRandom.nextFloat() * 0.5f) * cellWidth;
+		mCoords[pointer].y = (cell / COLUMNS + 0.25f + mRandom.nextFloat() * 0.5f) * cellHeight;
+	}
+
+	/** Moves a finger by a few pixels, as a resting finger does */
+	private void nudge(int pointer) {
+		mCoords[pointer].x += mRandom.nextInt(5) - 2;
+		mCoords[pointer].y += mRandom.nextInt(5) - 2;
+	}
+
+	private MotionEvent obtain(long downTime, long eventTime, int action, int pointerCount) {
+		return MotionEvent.obtain(downTime, eventTime, action, pointerCount, mProperties,
+				mCoords, 0, 0, 1f, 1f, 0, 0, InputDevice.SOURCE_TOUCHSCREEN, 0);
+	}
+
+	private MotionEvent.PointerCoords[] copyCoords(int pointerCount) {
+		final MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[pointerCount];
+		for (int i = 0; i < pointerCount; i++) {
+			coords[i] = new MotionEvent.PointerCoords(mCoords[i]);
+		}
+		return coords;
+	}
+}
@@ -0,0 +1,165 @@
+package com.s16.widget;
+
+import com.example.androidpasscode.MainActivity;
+
+import android.app.Activity;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+import android.widget.FrameLayout;
+
+/**
+ * Checks that the back buffer of a {@link PassCodeKeyboardView} goes back to the
+ * {@link BitmapPool} once the view is detached, but not before the next frame, and that a
+ * keyboard attached afterwards takes it instead of allocating a new one.
+ */
+public class PassCodeKeyboardBufferTest extends ActivityInstrumentationTestCase2<MainActivity> {
+
+	private static final int WIDTH = 600;
+	private static final int HEIGHT = 800;
+	private static final long TIMEOUT = 2000;
+
+	private FrameLayout mContainer;
+
+	public PassCodeKeyboardBufferTest() {
+		super(MainActivity.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		final Activity activity = getActivity();
+		getInstrumentation().runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				mContainer = new FrameLayout(activity);
+				activity.setContentView(mContainer);
+			}
+		});
+		// Let the buffers of the app's own keyboards reach the pool, then start empty
+		waitForFrames();
+		getInstrumentation().runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				BitmapPool.clear();
+			}
+		});
+	}
+
+	public void testBufferIsReusedAcrossDetachAndReattach() throws Throwable {
+		final PassCodeKeyboardView keyboard = addKeyboard(WIDTH, HEIGHT);
+		final Bitmap buffer = awaitBuffer(keyboard);
+
+		runTestOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				mContainer.removeView(keyboard);
+				assertNull(keyboard.getBuffer());
+				// The frame being drawn may still show the keyboard
+				assertFalse(BitmapPool.contains(buffer));
+			}
+		});
+		awaitPooled(buffer);
+
+		runTestOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				mContainer.addView(keyboard, new FrameLayout.LayoutParams(WIDTH, HEIGHT));
+			}
+		});
+		assertSame(buffer, awaitBuffer(keyboard));
+		assertFalse(BitmapPool.contains(buffer));
+	}
+
+	public void testNewKeyboardTakesTheBufferOfADetachedOne() throws Throwable {
+		final PassCodeKeyboardView keyboard = addKeyboard(WIDTH, HEIGHT);
+		final Bitmap buffer = awaitBuffer(keyboard);
+		removeAndAwaitPooled(keyboard, buffer);
+
+		// Like the keyboard of an activity recreated without a size change
+		assertSame(buffer, awaitBuffer(addKeyboard(WIDTH, HEIGHT)));
+	}
+
+	public void testRotatedKeyboardTakesTheBufferOfADetachedOne() throws Throwable {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+			// Bitmaps cannot be reconfigured, only the same size is reused
+			return;
+		}
+		final PassCodeKeyboardView keyboard = addKeyboard(WIDTH, HEIGHT);
+		final Bitmap buffer = awaitBuffer(keyboard);
+		removeAndAwaitPooled(keyboard, buffer);
+
+		// Landscape keyboards are shorter, the portrait buffer is large enough
+		final Bitmap rotated = awaitBuffer(addKeyboard(HEIGHT, WIDTH * 3 / 4));
+		assertSame(buffer, rotated);
+		assertEquals(HEIGHT, rotated.getWidth());
+		assertEquals(WIDTH * 3 / 4, rotated.getHeight());
+	}
+
+	private PassCodeKeyboardView addKeyboard(final int width, final int height) throws Throwable {
+		final PassCodeKeyboardView[] keyboard = new PassCodeKeyboardView[1];
+		runTestOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				keyboard[0] = new PassCodeKeyboardView(getActivity(), null);
+				mContainer.addView(keyboard[0], new FrameLayout.LayoutParams(width, height));
+			}
+		});
+		return keyboard[0];
+	}
+
+	private void removeAndAwaitPooled(final PassCodeKeyboardView keyboard, Bitmap buffer)
+			throws Throwable {
+		runTestOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				mContainer.removeView(keyboard);
+			}
+		});
+		awaitPooled(buffer);
+	}
+
+	private Bitmap awaitBuffer(final PassCodeKeyboardView keyboard) throws Throwable {
+		final Bitmap[] buffer = new Bitmap[1];
+		final long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+		while (SystemClock.uptimeMillis() < deadline) {
+			runTestOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					buffer[0] = keyboard.getBuffer();
+				}
+			});
+			if (buffer[0] != null) {
+				return buffer[0];
+			}
+			SystemClock.sleep(16);
+		}
+		fail("The keyboard was not drawn");
+		return null;
+	}
+
+	private void awaitPooled(final Bitmap buffer) throws Throwable {
+		final boolean[] pooled = new boolean[1];
+		final long deadline = SystemClock.uptimeMillis() + TIMEOUT;
+		while (SystemClock.uptimeMillis() < deadline) {
+			runTestOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					pooled[0] = BitmapPool.contains(buffer);
+				}
+			});
+			if (pooled[0]) {
+				return;
+			}
+			SystemClock.sleep(16);
+		}
+		fail("The buffer was not returned to the pool");
+	}
+
+	private void waitForFrames() {
+		getInstrumentation().waitForIdleSync();
+		SystemClock.sleep(100);
+		getInstrumentation().waitForIdleSync();
+	}
+}
@@ -0,0 +1,183 @@
+package com.s16.widget;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.example.androidpasscode.MainActivity;
+
+import android.app.Activity;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+import android.view.MotionEvent;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+
+/**
+ * Compares the memory and the frame time of {@link PassCodeKeyboardView} in
+ * {@link PassCodeKeyboardView#RENDER_MODE_DISPLAY_LIST} with the back buffer of
+ * {@link PassCodeKeyboardView#RENDER_MODE_BUFFERED}, on a device and at the full size of
+ * its screen.
+ *
+ * Memory is reported as the bytes of the back buffer, and as the growth of the Java and
+ * native heaps once the keyboard has drawn its first frame. The texture the buffer is
+ * uploaded to is not counted. The frame time is the time spent in
+ * {@link PassCodeKeyboardView#onDraw(Canvas)} for the frames after a key is pressed or
+ * released, the only work the two modes do differently. The percentiles are logged and
+ * reported as instrumentation status.
+ */
+public class PassCodeKeyboardRenderBenchmark extends ActivityInstrumentationTestCase2<MainActivity> {
+
+	private static final String TAG = "RenderBenchmark";
+	private static final int WARMUP = 20;
+	/** Presses, each one followed by a release */
+	private static final int ITERATIONS = 100;
+	private static final int COLUMNS = 3;
+	private static final int ROWS = 4;
+	private static final long TIMEOUT = 30000;
+
+	private FrameLayout mContainer;
+	private TimedKeyboardView mKeyboard;
+
+	public PassCodeKeyboardRenderBenchmark() {
+		super(MainActivity.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		final Activity activity = getActivity();
+		getInstrumentation().runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				mContainer = new FrameLayout(activity);
+				activity.setContentView(mContainer);
+				BitmapPool.clear();
+			}
+		});
+		getInstrumentation().waitForIdleSync();
+	}
+
+	public void testBufferedArgb8888() throws Throwable {
+		measure("buffered-8888", PassCodeKeyboardView.RENDER_MODE_BUFFERED,
+				PassCodeKeyboardView.BUFFER_FORMAT_ARGB_8888);
+	}
+
+	public void testBufferedRgb565() throws Throwable {
+		measure("buffered-565", PassCodeKeyboardView.RENDER_MODE_BUFFERED,
+				PassCodeKeyboardView.BUFFER_FORMAT_RGB_565);
+	}
+
+	public void testDisplayList() throws Throwable {
+		measure("display-list", PassCodeKeyboardView.RENDER_MODE_DISPLAY_LIST,
+				PassCodeKeyboardView.BUFFER_FORMAT_ARGB_8888);
+	}
+
+	private void measure(String name, final int renderMode, final int bufferFormat)
+			throws Throwable {
+		final long heapBefore = usedHeapBytes();
+		final CountDownLatch firstFrame = new CountDownLatch(1);
+		runTestOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				mKeyboard = new TimedKeyboardView(getActivity());
+				mKeyboard.setRenderMode(renderMode);
+				mKeyboard.setBufferFormat(bufferFormat);
+				mKeyboard.mFirstFrame = firstFrame;
+				mContainer.addView(mKeyboard, new FrameLayout.LayoutParams(
+						ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+			}
+		});
+		assertTrue("The keyboard was not drawn", firstFrame.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		final long heapAfter = usedHeapBytes();
+
+		final Bitmap buffer = mKeyboard.getBuffer();
+		final long bufferBytes = buffer != null ? (long) buffer.getRowBytes() * buffer.getHeight() : 0;
+
+		final CountDownLatch done = new CountDownLatch(1);
+		runTestOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				mKeyboard.startTouches(done);
+			}
+		});
+		assertTrue("The touches did not finish", done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+		final BenchmarkResults results = new BenchmarkResults(TAG);
+		results.putLong(name + "-buffer-bytes", bufferBytes);
+		results.putLong(name + "-heap-bytes", heapAfter - heapBefore);
+		results.putPercentiles(name + "-draw", mKeyboard.mSamples);
+		results.send(getInstrumentation());
+	}
+
+	private static long usedHeapBytes() {
+		return BenchmarkResults.usedHeapBytes() + Debug.getNativeHeapAllocatedSize();
+	}
+
+	/**
+	 * Times its own draws, and presses and releases its keys one frame after the other.
+	 */
+	private static class TimedKeyboardView extends PassCodeKeyboardView {
+		final long[] mSamples = new long[ITERATIONS * 2];
+		CountDownLatch mFirstFrame;
+		private CountDownLatch mDone;
+		/** Touches sent so far, negative during the warm-up */
+		private int mTouch;
+		private boolean mTouchPending;
+
+		TimedKeyboardView(Context context) {
+			super(context, null);
+		}
+
+		void startTouches(CountDownLatch done) {
+			mDone = done;
+			mTouch = -WARMUP * 2;
+			sendTouch();
+		}
+
+		@Override
+		public void onDraw(Canvas canvas) {
+			final long start = System.nanoTime();
+			super.onDraw(canvas);
+			final long elapsed = System.nanoTime() - start;
+			mFirstFrame.countDown();
+			if (!mTouchPending) {
+				return;
+			}
+			mTouchPending = false;
+			if (mTouch >= 0) {
+				mSamples[mTouch] = elapsed;
+			}
+			mTouch++;
+			if (mTouch < mSamples.length) {
+				// On the next message, this frame is not over yet
+				post(mSendTouch);
+			} else {
+				mDone.countDown();
+			}
+		}
+
+		private final Runnable mSendTouch = new Runnable() {
+			@Override
+			public void run() {
+				sendTouch();
+			}
+		};
+
+		private void sendTouch() {
+			// A press on even touches, the release of the same key on odd ones
+			final int cell = ((mTouch + WARMUP * 2) / 2) % (COLUMNS * ROWS);
+			final float x = (cell % COLUMNS + 0.5f) * getWidth() / COLUMNS;
+			final float y = (cell / COLUMNS + 0.5f) * getHeight() / ROWS;
+			final long now = SystemClock.uptimeMillis();
+			final int action = mTouch % 2 == 0 ? MotionEvent.ACTION_DOWN : MotionEvent.ACTION_UP;
+			final MotionEvent event = MotionEvent.obtain(now, now, action, x, y, 0);
+			mTouchPending = true;
+			onTouchEvent(event);
+			event.recycle();
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package com.s16.widget;
+
+import java.util.Arrays;
+
+import com.example.androidpasscode.MainActivity;
+
+import android.app.Activity;
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+import android.view.MotionEvent;
+import android.widget.FrameLayout;
+
+/**
+ * Measures the keystroke throughput of {@link PassCodeKeyboardView} on a device, by
+ * replaying a synthetic stream of taps and two-finger rolls through
+ * {@link PassCodeKeyboardView#onTouchEvent(MotionEvent)} as fast as the main thread takes
+ * them.
+ *
+ * Keys per second are reported as the median over several runs, with the percentiles of
+ * the time spent on each touch event. Every run also checks that no finger lost its key,
+ * so a faster path that drops overlapping touches does not pass.
+ */
+public class PassCodeKeyboardThroughputBenchmark extends ActivityInstrumentationTestCase2<MainActivity> {
+
+	private static final String TAG = "ThroughputBenchmark";
+	private static final int WIDTH = 720;
+	private static final int HEIGHT = 960;
+	private static final int GESTURES = 500;
+	private static final int WARMUP_RUNS = 2;
+	private static final int RUNS = 10;
+
+	private PassCodeKeyboardView mKeyboard;
+	private int mKeyCount;
+
+	private final PassCodeKeyboardView.OnKeyboardActionListener mListener =
+			new PassCodeKeyboardView.OnKeyboardActionListener() {
+		@Override
+		public void onPress(int primaryCode) {
+		}
+
+		@Override
+		public void onRelease(int primaryCode) {
+		}
+
+		@Override
+		public void onKey(int primaryCode, int[] keyCodes) {
+			mKeyCount++;
+		}
+
+		@Override
+		public void onF1Key(int primaryCode) {
+		}
+
+		@Override
+		public boolean onLongPress(int primaryCode) {
+			return false;
+		}
+	};
+
+	public PassCodeKeyboardThroughputBenchmark() {
+		super(MainActivity.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		final Activity activity = getActivity();
+		getInstrumentation().runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				final FrameLayout container = new FrameLayout(activity);
+				mKeyboard = new PassCodeKeyboardView(activity, null);
+				mKeyboard.addOnKeyboardActionListener(mListener);
+				container.addView(mKeyboard, new FrameLayout.LayoutParams(WIDTH, HEIGHT));
+				activity.setContentView(container);
+			}
+		});
+		getInstrumentation().waitForIdleSync();
+	}
+
+	public void testReleaseCommit() throws Throwable {
+		measure("release", false);
+	}
+
+	public void testCommitOnDown() throws Throwable {
+		measure("down", true);
+	}
+
+	private void measure(String name, final boolean commitOnDown) throws Throwable {
+		final KeyboardTouchStream stream = new KeyboardTouchStream(WIDTH, HEIGHT, GESTURES,
+				SystemClock.uptimeMillis(), 1);
+		final MotionEvent[] events = stream.getEvents();
+		final long[] eventSamples = new long[events.length * RUNS];
+		final long[] keysPerSecond = new long[RUNS];
+		try {
+			runTestOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					mKeyboard.setCommitOnDown(commitOnDown);
+					for (int run = -WARMUP_RUNS; run < RUNS; run++) {
+						mKeyCount = 0;
+						long total = 0;
+						for (int i = 0; i < events.length; i++) {
+							final long start = System.nanoTime();
+							mKeyboard.onTouchEvent(events[i]);
+							final long elapsed = System.nanoTime() - start;
+							total += elapsed;
+							if (run >= 0) {
+								eventSamples[run * events.length + i] = elapsed;
+							}
+						}
+						// Multi-tap keys send a delete before the key
+						assertTrue(mKeyCount + " keys for " + stream.getTapCount() + " taps",
+								mKeyCount >= stream.getTapCount());
+						if (run >= 0) {
+							keysPerSecond[run] = stream.getTapCount() * 1000000000L / Math.max(1, total);
+						}
+					}
+				}
+			});
+		} finally {
+			stream.recycle();
+		}
+
+		Arrays.sort(keysPerSecond);
+		final BenchmarkResults results = new BenchmarkResults(TAG);
+		results.putLong(name + "-keys-per-second", keysPerSecond[RUNS / 2]);
+		results.putPercentiles(name + "-event", eventSamples);
+		results.send(getInstrumentation());
+	}
+}
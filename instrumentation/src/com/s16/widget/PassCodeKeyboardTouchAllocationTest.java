@@ -0,0 +1,121 @@
+package com.s16.widget;
+
+import com.example.androidpasscode.MainActivity;
+
+import android.app.Activity;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+import android.view.MotionEvent;
+import android.widget.FrameLayout;
+
+/**
+ * Drives touch events through {@link PassCodeKeyboardView#onTouchEvent(MotionEvent)} on a
+ * device, down to {@link PassCodeKeyboardView.OnKeyboardActionListener#onKey(int, int[])},
+ * and checks that the whole path, pointer tracking and key dispatch included, does not
+ * allocate once it has warmed up.
+ *
+ * Allocations are counted on the main thread with {@link Debug#getThreadAllocCount()}. The
+ * events are obtained before counting starts and recycled after it stops.
+ */
+public class PassCodeKeyboardTouchAllocationTest extends ActivityInstrumentationTestCase2<MainActivity> {
+
+	private static final int WIDTH = 720;
+	private static final int HEIGHT = 960;
+	private static final int GESTURES = 200;
+
+	private PassCodeKeyboardView mKeyboard;
+	private int mKeyCount;
+
+	private final PassCodeKeyboardView.OnKeyboardActionListener mListener =
+			new PassCodeKeyboardView.OnKeyboardActionListener() {
+		@Override
+		public void onPress(int primaryCode) {
+		}
+
+		@Override
+		public void onRelease(int primaryCode) {
+		}
+
+		@Override
+		public void onKey(int primaryCode, int[] keyCodes) {
+			mKeyCount++;
+		}
+
+		@Override
+		public void onF1Key(int primaryCode) {
+		}
+
+		@Override
+		public boolean onLongPress(int primaryCode) {
+			return false;
+		}
+	};
+
+	public PassCodeKeyboardTouchAllocationTest() {
+		super(MainActivity.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		final Activity activity = getActivity();
+		getInstrumentation().runOnMainSync(new Runnable() {
+			@Override
+			public void run() {
+				final FrameLayout container = new FrameLayout(activity);
+				mKeyboard = new PassCodeKeyboardView(activity, null);
+				mKeyboard.setProximityCorrectionEnabled(true);
+				mKeyboard.addOnKeyboardActionListener(mListener);
+				container.addView(mKeyboard, new FrameLayout.LayoutParams(WIDTH, HEIGHT));
+				activity.setContentView(container);
+			}
+		});
+		getInstrumentation().waitForIdleSync();
+	}
+
+	public void testTouchToKeyDoesNotAllocate() throws Throwable {
+		assertTouchDoesNotAllocate(false);
+	}
+
+	public void testCommitOnDownDoesNotAllocate() throws Throwable {
+		assertTouchDoesNotAllocate(true);
+	}
+
+	private void assertTouchDoesNotAllocate(final boolean commitOnDown) throws Throwable {
+		final KeyboardTouchStream warmup = new KeyboardTouchStream(WIDTH, HEIGHT, GESTURES,
+				SystemClock.uptimeMillis(), 1);
+		final KeyboardTouchStream stream = new KeyboardTouchStream(WIDTH, HEIGHT, GESTURES,
+				SystemClock.uptimeMillis(), 2);
+		final int[] allocations = new int[1];
+		try {
+			runTestOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					mKeyboard.setCommitOnDown(commitOnDown);
+					// Fills the message pool and the lazily created pointer slots
+					replay(warmup.getEvents());
+
+					mKeyCount = 0;
+					Debug.resetThreadAllocCount();
+					Debug.startAllocCounting();
+					replay(stream.getEvents());
+					Debug.stopAllocCounting();
+					allocations[0] = Debug.getThreadAllocCount();
+				}
+			});
+		} finally {
+			warmup.recycle();
+			stream.recycle();
+		}
+		// Every finger that lifted sent at least its key, multi-tap keys send a delete too
+		assertTrue(mKeyCount + " keys sent", mKeyCount >= stream.getTapCount());
+		assertEquals(0, allocations[0]);
+	}
+
+	private void replay(MotionEvent[] events) {
+		for (int i = 0; i < events.length; i++) {
+			mKeyboard.onTouchEvent(events[i]);
+		}
+	}
+}
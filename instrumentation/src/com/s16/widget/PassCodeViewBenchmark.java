@@ -0,0 +1,180 @@
+package com.s16.widget;
+
+import com.example.androidpasscode.MainActivity;
+
+import android.app.Activity;
+import android.test.ActivityInstrumentationTestCase2;
+import android.view.KeyEvent;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.LinearLayout;
+
+/**
+ * Compares {@link SimplePassCodeView} with the {@link android.widget.EditText} based
+ * {@link PassCodeView}, on a device.
+ *
+ * Three things are measured for each view: the time to create, measure and lay out a new
+ * view, the Java heap retained by a view, and the time a digit from the keyboard takes to
+ * reach the view, from the keyboard action listener until the view has taken the digit
+ * and invalidated itself. The percentiles are logged and reported as instrumentation
+ * status.
+ */
+public class PassCodeViewBenchmark extends ActivityInstrumentationTestCase2<MainActivity> {
+
+	private static final String TAG = "PassCodeViewBenchmark";
+	private static final int WARMUP = 20;
+	private static final int ITERATIONS = 200;
+	/** Views kept alive at once to measure the retained heap */
+	private static final int RETAINED_COUNT = 50;
+	private static final int PIN_COUNT = 4;
+	private static final int WIDTH = 720;
+
+	private static final int[] NO_CODES = new int[0];
+
+	public PassCodeViewBenchmark() {
+		super(MainActivity.class);
+	}
+
+	public void testCreate() throws Throwable {
+		final BenchmarkResults results = new BenchmarkResults(TAG);
+		results.putPercentiles("edittext-create", measureCreate(false));
+		results.putPercentiles("simple-create", measureCreate(true));
+		results.send(getInstrumentation());
+	}
+
+	public void testRetainedHeap() throws Throwable {
+		final BenchmarkResults results = new BenchmarkResults(TAG);
+		results.putLong("edittext-retained-bytes", measureRetained(false));
+		results.putLong("simple-retained-bytes", measureRetained(true));
+		results.send(getInstrumentation());
+	}
+
+	public void testDigit() throws Throwable {
+		final BenchmarkResults results = new BenchmarkResults(TAG);
+		results.putPercentiles("edittext-digit", measureDigit(false));
+		results.putPercentiles("simple-digit", measureDigit(true));
+		results.send(getInstrumentation());
+	}
+
+	private long[] measureCreate(final boolean simple) throws Throwable {
+		final long[] samples = new long[ITERATIONS];
+		final Activity activity = getActivity();
+		runTestOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				final int widthSpec = View.MeasureSpec.makeMeasureSpec(WIDTH,
+						View.MeasureSpec.EXACTLY);
+				final int heightSpec = View.MeasureSpec.makeMeasureSpec(0,
+						View.MeasureSpec.UNSPECIFIED);
+				for (int i = -WARMUP; i < ITERATIONS; i++) {
+					final long start = System.nanoTime();
+					final View view = createView(activity, simple);
+					view.measure(widthSpec, heightSpec);
+					view.layout(0, 0, view.getMeasuredWidth(), view.getMeasuredHeight());
+					final long elapsed = System.nanoTime() - start;
+					if (i >= 0) {
+						samples[i] = elapsed;
+					}
+				}
+			}
+		});
+		return samples;
+	}
+
+	private long measureRetained(final boolean simple) throws Throwable {
+		final Activity activity = getActivity();
+		final View[] views = new View[RETAINED_COUNT];
+		// Loads the classes and resources shared by every view
+		runTestOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				createView(activity, simple);
+			}
+		});
+		final long before = BenchmarkResults.usedHeapBytes();
+		runTestOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < RETAINED_COUNT; i++) {
+					views[i] = createView(activity, simple);
+				}
+			}
+		});
+		final long after = BenchmarkResults.usedHeapBytes();
+		assertNotNull(views[RETAINED_COUNT - 1]);
+		return (after - before) / RETAINED_COUNT;
+	}
+
+	private long[] measureDigit(final boolean simple) throws Throwable {
+		final Activity activity = getActivity();
+		final PassCodeKeyboardView[] keyboard = new PassCodeKeyboardView[1];
+		final View[] view = new View[1];
+		runTestOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				final LinearLayout page = new LinearLayout(activity);
+				page.setOrientation(LinearLayout.VERTICAL);
+				keyboard[0] = new PassCodeKeyboardView(activity, null);
+				view[0] = createView(activity, simple);
+				if (simple) {
+					((SimplePassCodeView) view[0]).setKeyboardView(keyboard[0]);
+				} else {
+					((PassCodeView) view[0]).setKeyboardView(keyboard[0]);
+				}
+				page.addView(view[0], new LinearLayout.LayoutParams(
+						ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+				page.addView(keyboard[0], new LinearLayout.LayoutParams(
+						ViewGroup.LayoutParams.MATCH_PARENT, 0, 1));
+				activity.setContentView(page);
+			}
+		});
+		getInstrumentation().waitForIdleSync();
+
+		final long[] samples = new long[ITERATIONS];
+		runTestOnUiThread(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = -WARMUP; i < ITERATIONS; i++) {
+					if (isComplete(view[0], simple)) {
+						clear(view[0], simple);
+					}
+					final int code = KeyEvent.KEYCODE_0 + (i + WARMUP) % 10;
+					final long start = System.nanoTime();
+					// The path of a key released on the keyboard
+					keyboard[0].sendActionKey(code, NO_CODES);
+					final long elapsed = System.nanoTime() - start;
+					if (i >= 0) {
+						samples[i] = elapsed;
+					}
+				}
+				// Every digit was taken, the last one completed the passcode
+				assertTrue(isComplete(view[0], simple));
+			}
+		});
+		return samples;
+	}
+
+	private static View createView(Activity activity, boolean simple) {
+		if (simple) {
+			final SimplePassCodeView view = new SimplePassCodeView(activity);
+			view.setPinCount(PIN_COUNT);
+			return view;
+		}
+		final PassCodeView view = new PassCodeView(activity);
+		view.setPinCount(PIN_COUNT);
+		return view;
+	}
+
+	private static boolean isComplete(View view, boolean simple) {
+		return simple ? ((SimplePassCodeView) view).isPassCodeComplete()
+				: ((PassCodeView) view).isPassCodeComplete();
+	}
+
+	private static void clear(View view, boolean simple) {
+		if (simple) {
+			((SimplePassCodeView) view).clear();
+		} else {
+			((PassCodeView) view).setText("");
+		}
+	}
+}
@@ -1,33 +1,45 @@
 package com.example.androidpasscode;
 
-import com.example.androidpasscode.fragments.PasscodeComfirmFragment;
-import com.example.androidpasscode.fragments.PasscodeFragment;
+import com.example.androidpasscode.fragments.PasscodeFlowFragment;
+import com.s16.security.PassCodeStore;
+import com.s16.security.PassCodeVerifier;
 import com.s16.widget.FragmentSwitcher;
 
 import android.app.Activity;
 import android.app.Fragment;
 import android.app.FragmentManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.support.v13.app.FragmentPagerAdapter;
 import android.view.Menu;
 
 public class MainActivity extends Activity {
+	
+	public static final String KEY_PASSCODE = "passcode";
+	public static final String KEY_PASSCODE_PENDING = "passcode_pending";
+	
+	private static final String STORE_NAME = "passcode.properties";
+	/** Cost picked by the last calibration, and the build it was measured on */
+	private static final String KEY_COST = "scrypt_cost";
+	private static final String KEY_COST_DEVICE = "scrypt_cost_device";
 
 	public class PagePagerAdapter extends FragmentPagerAdapter {
 
-		private static final int S_COUNT = 2;
+		private static final int S_COUNT = 1;
 		private Fragment[] mFragments;
 		
 		public PagePagerAdapter(FragmentManager fm) {
 			super(fm);
 			
 			mFragments = new Fragment[S_COUNT];
-			mFragments[0] = new PasscodeFragment();
-			mFragments[1] = new PasscodeComfirmFragment();
 		}
 
 		@Override
 		public Fragment getItem(int position) {
+			// Pages are only created when the switcher first asks for them
+			if (mFragments[position] == null) {
+				mFragments[position] = new PasscodeFlowFragment();
+			}
 			return mFragments[position];
 		}
 
@@ -40,6 +52,9 @@ public class MainActivity extends Activity {
 	
 	private FragmentSwitcher mSwitcher;
 	private PagePagerAdapter mPagerAdapter;
+	private PassCodeVerifier mVerifier;
+	private PassCodeStore mStore;
+	private boolean mDestroyed;
 	
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -49,6 +64,50 @@ public class MainActivity extends Activity {
 		mPagerAdapter = new PagePagerAdapter(getFragmentManager());
 		mSwitcher = (FragmentSwitcher)findViewById(R.id.fragmentSwitcher);
 		mSwitcher.setAdapter(mPagerAdapter);
+		
+		mVerifier = new PassCodeVerifier();
+		mStore = new PassCodeStore(this, STORE_NAME);
+		mStore.load(new PassCodeStore.OnLoadListener() {
+			@Override
+			public void onLoaded(PassCodeStore store) {
+				if (!mDestroyed) {
+					loadCost(store);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Applies the cost saved by an earlier calibration. The device is only calibrated
+	 * again when there is none, or it was measured on another build.
+	 */
+	private void loadCost(final PassCodeStore store) {
+		final String device = Build.FINGERPRINT;
+		final String cost = store.getString(KEY_COST);
+		if (cost != null && device.equals(store.getString(KEY_COST_DEVICE))) {
+			try {
+				mVerifier.setCost(Integer.parseInt(cost));
+				return;
+			} catch (IllegalArgumentException e) {
+				// Also covers NumberFormatException, calibrate again below
+			}
+		}
+		mVerifier.calibrate(PassCodeVerifier.DEFAULT_TARGET_MILLIS,
+				new PassCodeVerifier.OnCalibrateListener() {
+			@Override
+			public void onCalibrated(int cost, long millis) {
+				store.putString(KEY_COST, String.valueOf(cost));
+				store.putString(KEY_COST_DEVICE, device);
+			}
+		});
+	}
+	
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		mDestroyed = true;
+		mVerifier.shutdown();
+		mStore.close();
 	}
 
 	@Override
@@ -56,9 +115,11 @@ public class MainActivity extends Activity {
 		return false;
 	}
 	
-	public void setPageIndex(int index) {
-		if (mSwitcher != null) {
-			mSwitcher.setCurrentItem(index);
-		}
+	public PassCodeVerifier getPassCodeVerifier() {
+		return mVerifier;
+	}
+	
+	public PassCodeStore getPassCodeStore() {
+		return mStore;
 	}
 }
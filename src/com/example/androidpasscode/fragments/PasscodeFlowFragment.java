@@ -0,0 +1,227 @@
+package com.example.androidpasscode.fragments;
+
+import java.util.Arrays;
+
+import com.example.androidpasscode.MainActivity;
+import com.example.androidpasscode.R;
+import com.s16.security.PassCodeHash;
+import com.s16.security.PassCodeStore;
+import com.s16.security.PassCodeVerifier;
+import com.s16.widget.PassCodeKeyboardView;
+import com.s16.widget.PassCodeView;
+
+import android.app.Fragment;
+import android.os.Bundle;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+import android.widget.TextView;
+import android.widget.Toast;
+
+/**
+ * Drives the passcode steps on a single {@link PassCodeView} and keyboard.
+ *
+ * Moving to another step only changes the prompt and clears the entered digits, the views
+ * are inflated once for the whole flow.
+ */
+public class PasscodeFlowFragment extends Fragment {
+
+	private PassCodeKeyboardView.OnKeyboardActionListener mKeyboardActionListener = new PassCodeKeyboardView.OnKeyboardActionListener() {
+		
+		@Override
+		public void onRelease(int primaryCode) {
+		}
+		
+		@Override
+		public void onPress(int primaryCode) {
+		}
+		
+		@Override
+		public boolean onLongPress(int primaryCode) {
+			return false;
+		}
+		
+		@Override
+		public void onKey(int primaryCode, int[] keyCodes) {
+		}
+		
+		@Override
+		public void onF1Key(int primaryCode) {
+			if (primaryCode == F1KEY_CODE) {
+				onAccept();
+			}
+		}
+	};
+	
+	/** A new passcode is entered */
+	public static final int STEP_ENTER = 0;
+	/** The new passcode is entered again */
+	public static final int STEP_CONFIRM = 1;
+	
+	private static final String STATE_STEP = "step";
+	private static int F1KEY_CODE = 0x1000;
+	
+	private int mStep = STEP_ENTER;
+	private TextView mTitleView;
+	private PassCodeView mPassCodeView;
+	private PassCodeVerifier.Task mTask;
+	private boolean mLoading;
+	
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		if (savedInstanceState != null) {
+			mStep = savedInstanceState.getInt(STATE_STEP, STEP_ENTER);
+		}
+	}
+	
+	@Override
+	public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+		ViewGroup rootView = (ViewGroup)inflater.inflate(R.layout.fragment_passcode, container, false);
+		
+		mTitleView = (TextView)rootView.findViewById(R.id.textTitle);
+		mPassCodeView = (PassCodeView)rootView.findViewById(R.id.passcodeView);
+		
+		ViewGroup frameKeyboard = (ViewGroup)rootView.findViewById(R.id.frameKeyboard);
+		PassCodeKeyboardView keyboardView = (PassCodeKeyboardView)inflater.inflate(R.layout.layout_keyboard, frameKeyboard, false);
+		
+		CharSequence f1Label = getResources().getString(android.R.string.ok);
+		keyboardView.setF1Key(f1Label, new int[] { F1KEY_CODE });
+		keyboardView.addOnKeyboardActionListener(mKeyboardActionListener);
+		
+		frameKeyboard.addView(keyboardView, new FrameLayout.LayoutParams(FrameLayout.LayoutParams.MATCH_PARENT, FrameLayout.LayoutParams.MATCH_PARENT));
+		mPassCodeView.setKeyboardView(keyboardView);
+		
+		updatePrompt();
+		return rootView;
+	}
+	
+	@Override
+	public void onSaveInstanceState(Bundle outState) {
+		super.onSaveInstanceState(outState);
+		outState.putInt(STATE_STEP, mStep);
+	}
+	
+	@Override
+	public void onDestroyView() {
+		super.onDestroyView();
+		mLoading = false;
+		if (mTask != null) {
+			mTask.cancel();
+			mTask = null;
+		}
+	}
+	
+	public int getStep() {
+		return mStep;
+	}
+	
+	/**
+	 * Moves to another step, keeping the current views.
+	 */
+	public void setStep(int step) {
+		if (mStep == step) return;
+		mStep = step;
+		if (mPassCodeView != null) {
+			mPassCodeView.getText().clear();
+			updatePrompt();
+		}
+	}
+	
+	private void updatePrompt() {
+		switch (mStep) {
+			case STEP_CONFIRM:
+				mTitleView.setText(R.string.info_enter_passcode_confirm);
+				break;
+			default:
+				mTitleView.setText(R.string.info_enter_passcode);
+				break;
+		}
+	}
+	
+	private void onAccept() {
+		if (mTask != null || mLoading) return;
+		if (mPassCodeView == null || !mPassCodeView.isPassCodeComplete()) {
+			Toast.makeText(getActivity(), R.string.message_passcode_empty, Toast.LENGTH_LONG).show();
+			return;
+		}
+		
+		switch (mStep) {
+			case STEP_ENTER:
+				enroll();
+				break;
+			case STEP_CONFIRM:
+				mLoading = true;
+				getPassCodeStore().load(new PassCodeStore.OnLoadListener() {
+					
+					@Override
+					public void onLoaded(PassCodeStore store) {
+						mLoading = false;
+						if (mPassCodeView != null && isAdded()) {
+							confirm(store);
+						}
+					}
+				});
+				break;
+		}
+	}
+	
+	private void enroll() {
+		char[] passcode = getPassCode();
+		mTask = getPassCodeVerifier().enroll(passcode, new PassCodeVerifier.OnEnrollListener() {
+			
+			@Override
+			public void onEnrolled(PassCodeHash hash) {
+				mTask = null;
+				if (hash == null) return;
+				getPassCodeStore().putString(MainActivity.KEY_PASSCODE_PENDING, hash.encode());
+				setStep(STEP_CONFIRM);
+			}
+		});
+		Arrays.fill(passcode, (char) 0);
+	}
+	
+	private void confirm(final PassCodeStore store) {
+		final String encoded = store.getString(MainActivity.KEY_PASSCODE_PENDING);
+		PassCodeHash hash = PassCodeHash.decode(encoded);
+		if (hash == null) {
+			Toast.makeText(getActivity(), R.string.message_passcode_not_match, Toast.LENGTH_LONG).show();
+			return;
+		}
+		
+		char[] passcode = getPassCode();
+		mTask = getPassCodeVerifier().verify(passcode, hash, new PassCodeVerifier.OnVerifyListener() {
+			
+			@Override
+			public void onVerified(boolean match) {
+				mTask = null;
+				if (match) {
+					store.putString(MainActivity.KEY_PASSCODE, encoded);
+					store.remove(MainActivity.KEY_PASSCODE_PENDING);
+					Toast.makeText(getActivity(), R.string.message_passcode_set, Toast.LENGTH_LONG).show();
+				} else {
+					Toast.makeText(getActivity(), R.string.message_passcode_not_match, Toast.LENGTH_LONG).show();
+				}
+			}
+		});
+		Arrays.fill(passcode, (char) 0);
+	}
+	
+	private PassCodeVerifier getPassCodeVerifier() {
+		return ((MainActivity)getActivity()).getPassCodeVerifier();
+	}
+	
+	private PassCodeStore getPassCodeStore() {
+		return ((MainActivity)getActivity()).getPassCodeStore();
+	}
+	
+	private char[] getPassCode() {
+		CharSequence text = mPassCodeView.getText();
+		char[] passcode = new char[text.length()];
+		for (int i = 0; i < passcode.length; i++) {
+			passcode[i] = text.charAt(i);
+		}
+		return passcode;
+	}
+}
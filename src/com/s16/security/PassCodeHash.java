@@ -0,0 +1,134 @@
+package com.s16.security;
+
+/**
+ * A salted scrypt hash of a passcode, together with the parameters it was derived with.
+ *
+ * The passcode itself is never kept, only the derived key. The parameters travel with the
+ * hash so a hash stays verifiable when the work factor of new hashes changes.
+ */
+public final class PassCodeHash {
+
+	private static final char SEPARATOR = '$';
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	/* Bounds of decoded hashes, so a corrupted one cannot ask for a huge derivation. */
+	private static final int MAX_BLOCK_SIZE = 8;
+	private static final int MAX_PARALLELIZATION = 16;
+	private static final int MAX_SALT_LENGTH = 64;
+	private static final int MAX_KEY_LENGTH = 64;
+	private static final int MAX_ENCODED_LENGTH = 64 + 4 * (MAX_SALT_LENGTH + MAX_KEY_LENGTH);
+
+	private final int mCost;
+	private final int mBlockSize;
+	private final int mParallelization;
+	private final byte[] mSalt;
+	private final byte[] mKey;
+
+	public PassCodeHash(int cost, int blockSize, int parallelization, byte[] salt, byte[] key) {
+		mCost = cost;
+		mBlockSize = blockSize;
+		mParallelization = parallelization;
+		mSalt = salt.clone();
+		mKey = key.clone();
+	}
+
+	/** The scrypt CPU/memory cost N */
+	public int getCost() {
+		return mCost;
+	}
+
+	/** The scrypt block size r */
+	public int getBlockSize() {
+		return mBlockSize;
+	}
+
+	/** The scrypt parallelization p */
+	public int getParallelization() {
+		return mParallelization;
+	}
+
+	public byte[] getSalt() {
+		return mSalt.clone();
+	}
+
+	int getKeyLength() {
+		return mKey.length;
+	}
+
+	/**
+	 * Compares a derived key with this hash. The time taken only depends on the key
+	 * length, not on where the keys differ.
+	 */
+	boolean matches(byte[] key) {
+		if (key.length != mKey.length) return false;
+		int diff = 0;
+		for (int i = 0; i < mKey.length; i++) {
+			diff |= mKey[i] ^ key[i];
+		}
+		return diff == 0;
+	}
+
+	/**
+	 * Returns the hash as a string that can be given back to {@link #decode(String)}.
+	 */
+	public String encode() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(mCost).append(SEPARATOR);
+		sb.append(mBlockSize).append(SEPARATOR);
+		sb.append(mParallelization).append(SEPARATOR);
+		appendHex(sb, mSalt);
+		sb.append(SEPARATOR);
+		appendHex(sb, mKey);
+		return sb.toString();
+	}
+
+	/**
+	 * Parses a string produced by {@link #encode()}. The cost must be a power of 2 no larger
+	 * than {@link PassCodeVerifier#MAX_COST}, and the other parameters within the range the
+	 * verifier creates hashes with.
+	 * @return the hash, or null if the string is not a valid encoded hash
+	 */
+	public static PassCodeHash decode(String encoded) {
+		if (encoded == null || encoded.length() > MAX_ENCODED_LENGTH) return null;
+		String[] parts = encoded.split("\\" + SEPARATOR);
+		if (parts.length != 5) return null;
+		try {
+			int cost = Integer.parseInt(parts[0]);
+			int blockSize = Integer.parseInt(parts[1]);
+			int parallelization = Integer.parseInt(parts[2]);
+			if (cost < 2 || (cost & (cost - 1)) != 0 || cost > PassCodeVerifier.MAX_COST
+					|| blockSize < 1 || blockSize > MAX_BLOCK_SIZE
+					|| parallelization < 1 || parallelization > MAX_PARALLELIZATION) {
+				return null;
+			}
+			byte[] salt = parseHex(parts[3]);
+			byte[] key = parseHex(parts[4]);
+			if (salt == null || key == null || key.length == 0
+					|| salt.length > MAX_SALT_LENGTH || key.length > MAX_KEY_LENGTH) {
+				return null;
+			}
+			return new PassCodeHash(cost, blockSize, parallelization, salt, key);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static void appendHex(StringBuilder sb, byte[] bytes) {
+		for (int i = 0; i < bytes.length; i++) {
+			sb.append(HEX_DIGITS[(bytes[i] >> 4) & 0xf]);
+			sb.append(HEX_DIGITS[bytes[i] & 0xf]);
+		}
+	}
+
+	private static byte[] parseHex(String s) {
+		if ((s.length() & 1) != 0) return null;
+		byte[] bytes = new byte[s.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			int hi = Character.digit(s.charAt(i * 2), 16);
+			int lo = Character.digit(s.charAt(i * 2 + 1), 16);
+			if (hi < 0 || lo < 0) return null;
+			bytes[i] = (byte) ((hi << 4) | lo);
+		}
+		return bytes;
+	}
+}
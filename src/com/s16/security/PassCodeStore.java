@@ -0,0 +1,332 @@
+package com.s16.security;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * A small persistent key-value store for credentials such as an encoded {@link PassCodeHash}.
+ *
+ * The file is only read and written on a background thread. It is loaded the first time
+ * the store is used, not when it is created, so creating a store costs nothing at startup.
+ * Values are read from memory once loaded, and changes are written back as a whole file
+ * to a temporary file that is then renamed over the previous one, so a crash during a
+ * write leaves either the old or the new contents. Changes made before a write starts are
+ * coalesced into that write. If the file exists but cannot be read, it is never written,
+ * so the values it holds are not replaced by the ones known in memory.
+ */
+public class PassCodeStore {
+
+	private static final String TAG = PassCodeStore.class.getSimpleName();
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	public interface OnLoadListener {
+		public void onLoaded(PassCodeStore store);
+	}
+
+	private final Context mContext;
+	private final String mName;
+	private final Object mLock = new Object();
+	/** Runs the file I/O */
+	private final ExecutorService mExecutor;
+	/** Delivers the load callbacks, on the main thread */
+	private final Executor mCallbackExecutor;
+
+	private File mFile;
+	// Guarded by mLock
+	private Map<String, String> mValues = new HashMap<String, String>();
+	/** Keys removed before the load completed, dropped from the values read from disk */
+	private final Set<String> mRemovedBeforeLoad = new HashSet<String>();
+	private boolean mLoadStarted;
+	private boolean mLoaded;
+	/** The file could not be read, it is left alone and changes are only kept in memory */
+	private boolean mReadFailed;
+	private boolean mWritePending;
+	private boolean mClosed;
+	private List<OnLoadListener> mLoadListeners = new ArrayList<OnLoadListener>();
+
+	/**
+	 * @param name file name of the store, inside the application files directory
+	 */
+	public PassCodeStore(Context context, String name) {
+		this(context.getApplicationContext(), name, null, newBackgroundExecutor(),
+				newMainThreadExecutor());
+	}
+
+	/**
+	 * Creates a store on a given file, for tests.
+	 * @param executor runs the file I/O, shut down by {@link #close()}
+	 * @param callbackExecutor delivers the load callbacks
+	 */
+	PassCodeStore(File file, ExecutorService executor, Executor callbackExecutor) {
+		this(null, null, file, executor, callbackExecutor);
+	}
+
+	private PassCodeStore(Context context, String name, File file, ExecutorService executor,
+			Executor callbackExecutor) {
+		mContext = context;
+		mName = name;
+		mFile = file;
+		mExecutor = executor;
+		mCallbackExecutor = callbackExecutor;
+	}
+
+	private static ExecutorService newBackgroundExecutor() {
+		return Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				return new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, TAG);
+			}
+		});
+	}
+
+	private static Executor newMainThreadExecutor() {
+		final Handler handler = new Handler(Looper.getMainLooper());
+		return new Executor() {
+			@Override
+			public void execute(Runnable r) {
+				handler.post(r);
+			}
+		};
+	}
+
+	/**
+	 * Loads the store if it is not loaded yet, and calls the listener on the main thread
+	 * once it is.
+	 */
+	public void load(final OnLoadListener listener) {
+		synchronized (mLock) {
+			checkOpenLocked();
+			if (!mLoaded) {
+				mLoadListeners.add(listener);
+				startLoadLocked();
+				return;
+			}
+		}
+		mCallbackExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				listener.onLoaded(PassCodeStore.this);
+			}
+		});
+	}
+
+	public boolean isLoaded() {
+		synchronized (mLock) {
+			return mLoaded;
+		}
+	}
+
+	/**
+	 * Returns a value. Only meaningful once the store is loaded, see {@link #load}.
+	 */
+	public String getString(String key) {
+		synchronized (mLock) {
+			return mValues.get(key);
+		}
+	}
+
+	/**
+	 * Sets a value and schedules a write. The store does not need to be loaded first,
+	 * values set or removed before the load completes take precedence over the ones on disk.
+	 * @param value the value, or null to remove the key
+	 * @throws IllegalStateException if the store is closed
+	 */
+	public void putString(String key, String value) {
+		synchronized (mLock) {
+			checkOpenLocked();
+			if (value == null) {
+				mValues.remove(key);
+			} else {
+				mValues.put(key, value);
+			}
+			if (!mLoaded) {
+				if (value == null) {
+					mRemovedBeforeLoad.add(key);
+				} else {
+					mRemovedBeforeLoad.remove(key);
+				}
+			}
+			startLoadLocked();
+			scheduleWriteLocked();
+		}
+	}
+
+	public void remove(String key) {
+		putString(key, null);
+	}
+
+	/**
+	 * Lets pending writes finish, then stops the background thread. The store cannot be
+	 * loaded or changed afterwards.
+	 */
+	public void close() {
+		synchronized (mLock) {
+			mClosed = true;
+		}
+		mExecutor.shutdown();
+	}
+
+	private void checkOpenLocked() {
+		if (mClosed) {
+			throw new IllegalStateException("The store is closed");
+		}
+	}
+
+	private void startLoadLocked() {
+		if (mLoadStarted) return;
+		mLoadStarted = true;
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				Map<String, String> values = readFile();
+				final List<OnLoadListener> listeners;
+				synchronized (mLock) {
+					if (values != null) {
+						values.keySet().removeAll(mRemovedBeforeLoad);
+						values.putAll(mValues);
+						mValues = values;
+					} else {
+						mReadFailed = true;
+					}
+					mRemovedBeforeLoad.clear();
+					mLoaded = true;
+					listeners = mLoadListeners;
+					mLoadListeners = new ArrayList<OnLoadListener>();
+				}
+				if (listeners.isEmpty()) return;
+				mCallbackExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						for (int i = 0; i < listeners.size(); i++) {
+							listeners.get(i).onLoaded(PassCodeStore.this);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	private void scheduleWriteLocked() {
+		if (mWritePending) return;
+		mWritePending = true;
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				final Properties properties = new Properties();
+				synchronized (mLock) {
+					mWritePending = false;
+					if (mReadFailed) {
+						// Writing would replace the values in the file with the few known here
+						Log.w(TAG, "Not writing " + getFile() + ", it could not be read");
+						return;
+					}
+					properties.putAll(mValues);
+				}
+				writeFile(properties);
+			}
+		});
+	}
+
+	private File getFile() {
+		// Resolved on the background thread, getFilesDir() can touch the disk
+		if (mFile == null) {
+			mFile = new File(mContext.getFilesDir(), mName);
+		}
+		return mFile;
+	}
+
+	/**
+	 * Returns the values in the file, or null if it exists but cannot be read.
+	 */
+	private Map<String, String> readFile() {
+		final File file = getFile();
+		final File temp = new File(file.getPath() + TEMP_SUFFIX);
+		// A leftover temp file is from a write that did not complete, the previous file is intact
+		if (temp.exists() && !temp.delete()) {
+			Log.w(TAG, "Unable to delete " + temp);
+		}
+
+		final Map<String, String> values = new HashMap<String, String>();
+		if (!file.exists()) {
+			return values;
+		}
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(file));
+			Properties properties = new Properties();
+			properties.load(in);
+			for (String key : properties.stringPropertyNames()) {
+				values.put(key, properties.getProperty(key));
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to read " + file, e);
+			return null;
+		} catch (IllegalArgumentException e) {
+			// A malformed unicode escape, the file is corrupt
+			Log.e(TAG, "Unable to read " + file, e);
+			return null;
+		} finally {
+			closeQuietly(in);
+		}
+		return values;
+	}
+
+	private void writeFile(Properties properties) {
+		final File file = getFile();
+		final File temp = new File(file.getPath() + TEMP_SUFFIX);
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(temp);
+			BufferedOutputStream out = new BufferedOutputStream(fos);
+			properties.store(out, null);
+			out.flush();
+			fos.getFD().sync();
+			fos.close();
+			fos = null;
+			if (!temp.renameTo(file)) {
+				throw new IOException("Unable to rename " + temp + " to " + file);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to write " + file, e);
+			closeQuietly(fos);
+			temp.delete();
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable == null) return;
+		try {
+			closeable.close();
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,305 @@
+package com.s16.security;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Derives and verifies {@link PassCodeHash} values off the main thread.
+ *
+ * Derivations run one at a time on a background thread, in the order they were requested,
+ * and the results are delivered on the main thread. Every request returns a {@link Task}
+ * that can be cancelled, in which case its listener is never called.
+ *
+ * The work factor of new hashes can be fixed with {@link #setCost(int)}, or picked for the
+ * current device with {@link #calibrate(long, OnCalibrateListener)}.
+ */
+public class PassCodeVerifier {
+
+	private static final String TAG = PassCodeVerifier.class.getSimpleName();
+	private static final boolean DEBUG = false;
+
+	public interface OnEnrollListener {
+		/**
+		 * @param hash the new hash, or null if the derivation failed
+		 */
+		public void onEnrolled(PassCodeHash hash);
+	}
+
+	public interface OnVerifyListener {
+		public void onVerified(boolean match);
+	}
+
+	public interface OnCalibrateListener {
+		/**
+		 * @param cost the selected cost, already applied to the verifier
+		 * @param millis time one verification took at that cost
+		 */
+		public void onCalibrated(int cost, long millis);
+	}
+
+	/**
+	 * A pending derivation.
+	 */
+	public static final class Task {
+		private final AtomicBoolean mCancelled = new AtomicBoolean();
+		private Future<?> mFuture;
+
+		/**
+		 * Stops the derivation as soon as possible. The listener will not be called.
+		 * Must be called from the main thread.
+		 */
+		public void cancel() {
+			mCancelled.set(true);
+			if (mFuture != null) {
+				mFuture.cancel(false);
+			}
+		}
+
+		public boolean isCancelled() {
+			return mCancelled.get();
+		}
+	}
+
+	public static final int DEFAULT_COST = 1 << 12;
+	public static final int MIN_COST = 1 << 8;
+	public static final int MAX_COST = 1 << 20;
+	public static final long DEFAULT_TARGET_MILLIS = 250;
+
+	private static final int BLOCK_SIZE = 8;
+	private static final int PARALLELIZATION = 1;
+	private static final int SALT_LENGTH = 16;
+	private static final int KEY_LENGTH = 32;
+
+	private final ExecutorService mExecutor;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final SecureRandom mRandom = new SecureRandom();
+	private volatile int mCost = DEFAULT_COST;
+	private volatile boolean mShutdown;
+
+	public PassCodeVerifier() {
+		mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				return new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, TAG);
+			}
+		});
+	}
+
+	/**
+	 * Sets the cost of hashes created by {@link #enroll}, for instance one saved from an
+	 * earlier {@link #calibrate}. Existing hashes keep the cost they were created with.
+	 * @param cost a power of 2 between {@link #MIN_COST} and {@link #MAX_COST}
+	 */
+	public void setCost(int cost) {
+		if (cost < MIN_COST || cost > MAX_COST || (cost & (cost - 1)) != 0) {
+			throw new IllegalArgumentException("cost must be a power of 2 between "
+					+ MIN_COST + " and " + MAX_COST);
+		}
+		mCost = cost;
+	}
+
+	public int getCost() {
+		return mCost;
+	}
+
+	/**
+	 * Derives a new salted hash of a passcode.
+	 * @param passcode the passcode, copied before this method returns so the caller can
+	 * clear its array right away
+	 */
+	public Task enroll(char[] passcode, final OnEnrollListener listener) {
+		final byte[] passwd = toBytes(passcode);
+		final Task task = new Task();
+		task.mFuture = mExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				PassCodeHash hash = null;
+				try {
+					byte[] salt = new byte[SALT_LENGTH];
+					mRandom.nextBytes(salt);
+					final int cost = mCost;
+					byte[] key = Scrypt.derive(passwd, salt, cost, BLOCK_SIZE, PARALLELIZATION,
+							KEY_LENGTH, task.mCancelled);
+					hash = new PassCodeHash(cost, BLOCK_SIZE, PARALLELIZATION, salt, key);
+					Arrays.fill(key, (byte) 0);
+				} catch (CancellationException e) {
+					return;
+				} catch (Exception e) {
+					Log.e(TAG, "Enroll failed", e);
+				} catch (OutOfMemoryError e) {
+					Log.e(TAG, "Enroll failed", e);
+				} finally {
+					Arrays.fill(passwd, (byte) 0);
+				}
+
+				final PassCodeHash result = hash;
+				post(task, new Runnable() {
+					@Override
+					public void run() {
+						listener.onEnrolled(result);
+					}
+				});
+			}
+		});
+		return task;
+	}
+
+	/**
+	 * Checks a passcode against a hash. A hash that cannot be derived again, for instance
+	 * because it was created with unsupported parameters, never matches.
+	 * @param passcode the passcode, copied before this method returns so the caller can
+	 * clear its array right away
+	 */
+	public Task verify(char[] passcode, final PassCodeHash hash, final OnVerifyListener listener) {
+		final byte[] passwd = toBytes(passcode);
+		final Task task = new Task();
+		task.mFuture = mExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				boolean match = false;
+				try {
+					if (!fitsInMemory(hash.getCost(), hash.getBlockSize())) {
+						throw new IllegalArgumentException("Hash needs too much memory, cost="
+								+ hash.getCost() + " blockSize=" + hash.getBlockSize());
+					}
+					byte[] key = Scrypt.derive(passwd, hash.getSalt(), hash.getCost(),
+							hash.getBlockSize(), hash.getParallelization(), hash.getKeyLength(),
+							task.mCancelled);
+					match = hash.matches(key);
+					Arrays.fill(key, (byte) 0);
+				} catch (CancellationException e) {
+					return;
+				} catch (Exception e) {
+					Log.e(TAG, "Verify failed", e);
+				} catch (OutOfMemoryError e) {
+					Log.e(TAG, "Verify failed", e);
+				} finally {
+					Arrays.fill(passwd, (byte) 0);
+				}
+
+				final boolean result = match;
+				post(task, new Runnable() {
+					@Override
+					public void run() {
+						listener.onVerified(result);
+					}
+				});
+			}
+		});
+		return task;
+	}
+
+	/**
+	 * Measures derivations of increasing cost and selects the largest cost whose
+	 * verification time is closest to the target. The cost is also bounded by a quarter of
+	 * the heap available to the process.
+	 * Tasks submitted after this one use the selected cost.
+	 * @param listener may be null
+	 */
+	public Task calibrate(final long targetMillis, final OnCalibrateListener listener) {
+		final Task task = new Task();
+		task.mFuture = mExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				final byte[] passwd = new byte[] { '0' };
+				final byte[] salt = new byte[SALT_LENGTH];
+				int bestCost = MIN_COST;
+				long bestMillis = 0;
+				try {
+					for (int cost = MIN_COST; cost <= MAX_COST; cost <<= 1) {
+						if (!fitsInMemory(cost, BLOCK_SIZE)) break;
+						long start = SystemClock.elapsedRealtime();
+						Scrypt.derive(passwd, salt, cost, BLOCK_SIZE, PARALLELIZATION, KEY_LENGTH,
+								task.mCancelled);
+						long millis = SystemClock.elapsedRealtime() - start;
+						if (DEBUG) Log.d(TAG, "cost=" + cost + " time=" + millis + "ms");
+
+						if (millis > targetMillis) {
+							if (millis - targetMillis < targetMillis - bestMillis) {
+								bestCost = cost;
+								bestMillis = millis;
+							}
+							break;
+						}
+						bestCost = cost;
+						bestMillis = millis;
+					}
+				} catch (CancellationException e) {
+					return;
+				} catch (Exception e) {
+					Log.e(TAG, "Calibrate failed", e);
+				} catch (OutOfMemoryError e) {
+					Log.e(TAG, "Calibrate failed", e);
+				}
+
+				mCost = bestCost;
+				if (listener == null) return;
+				final int cost = bestCost;
+				final long millis = bestMillis;
+				post(task, new Runnable() {
+					@Override
+					public void run() {
+						listener.onCalibrated(cost, millis);
+					}
+				});
+			}
+		});
+		return task;
+	}
+
+	/**
+	 * Stops the background thread. Pending tasks are cancelled.
+	 */
+	public void shutdown() {
+		mShutdown = true;
+		mExecutor.shutdownNow();
+		mHandler.removeCallbacksAndMessages(null);
+	}
+
+	private void post(final Task task, final Runnable r) {
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (!mShutdown && !task.isCancelled()) {
+					r.run();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Whether a derivation stays within a quarter of the heap available to the process.
+	 */
+	private static boolean fitsInMemory(int cost, int blockSize) {
+		return (long) cost * 128 * blockSize <= Runtime.getRuntime().maxMemory() / 4;
+	}
+
+	private static byte[] toBytes(char[] passcode) {
+		// Passcodes are made of digits, but keep any other character unambiguous as UTF-16
+		byte[] bytes = new byte[passcode.length * 2];
+		for (int i = 0; i < passcode.length; i++) {
+			bytes[i * 2] = (byte) (passcode[i] >> 8);
+			bytes[i * 2 + 1] = (byte) passcode[i];
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,157 @@
+package com.s16.security;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The scrypt memory-hard key derivation function (RFC 7914).
+ *
+ * Only depends on {@link Mac} for HMAC-SHA256, which is available on every
+ * Android release this project supports.
+ */
+public final class Scrypt {
+
+	private Scrypt() {
+	}
+
+	/**
+	 * Derives a key from a password.
+	 * @param passwd the password bytes
+	 * @param salt the salt
+	 * @param n CPU/memory cost, a power of two greater than one
+	 * @param r block size
+	 * @param p parallelization
+	 * @param dkLen length of the derived key in bytes
+	 * @param cancelled checked periodically, the derivation stops with a
+	 * {@link CancellationException} once it is set or the thread is interrupted. May be null.
+	 */
+	public static byte[] derive(byte[] passwd, byte[] salt, int n, int r, int p, int dkLen,
+			AtomicBoolean cancelled) throws GeneralSecurityException {
+		if (n < 2 || (n & (n - 1)) != 0) {
+			throw new IllegalArgumentException("N must be a power of 2 greater than 1");
+		}
+		if (passwd.length == 0) {
+			throw new IllegalArgumentException("Empty password");
+		}
+		if (r < 1 || p < 1 || n > Integer.MAX_VALUE / 128 / r) {
+			throw new IllegalArgumentException("Parameters are too large");
+		}
+
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(passwd, "HmacSHA256"));
+
+		final int blockSize = 128 * r;
+		byte[] b = pbkdf2(mac, salt, p * blockSize);
+		int[] xy = new int[64 * r];
+		int[] v = new int[32 * r * n];
+		int[] x = new int[16];
+		for (int i = 0; i < p; i++) {
+			smix(b, i * blockSize, r, n, v, xy, x, cancelled);
+		}
+		byte[] dk = pbkdf2(mac, b, dkLen);
+		Arrays.fill(b, (byte) 0);
+		Arrays.fill(v, 0);
+		Arrays.fill(xy, 0);
+		return dk;
+	}
+
+	/** PBKDF2 with a single iteration, which is all scrypt needs. */
+	private static byte[] pbkdf2(Mac mac, byte[] salt, int dkLen) {
+		final int hLen = mac.getMacLength();
+		byte[] dk = new byte[dkLen];
+		byte[] counter = new byte[4];
+		for (int block = 1, offset = 0; offset < dkLen; block++, offset += hLen) {
+			counter[0] = (byte) (block >>> 24);
+			counter[1] = (byte) (block >>> 16);
+			counter[2] = (byte) (block >>> 8);
+			counter[3] = (byte) block;
+			mac.update(salt);
+			byte[] u = mac.doFinal(counter);
+			System.arraycopy(u, 0, dk, offset, Math.min(hLen, dkLen - offset));
+		}
+		return dk;
+	}
+
+	private static void smix(byte[] b, int offset, int r, int n, int[] v, int[] xy, int[] x,
+			AtomicBoolean cancelled) {
+		final int words = 32 * r;
+		for (int k = 0; k < words; k++) {
+			int i = offset + k * 4;
+			xy[k] = (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16
+					| (b[i + 3] & 0xff) << 24;
+		}
+		for (int i = 0; i < n; i++) {
+			if ((i & 0xff) == 0) checkCancelled(cancelled);
+			System.arraycopy(xy, 0, v, i * words, words);
+			blockMix(xy, x, r);
+		}
+		for (int i = 0; i < n; i++) {
+			if ((i & 0xff) == 0) checkCancelled(cancelled);
+			int j = xy[(2 * r - 1) * 16] & (n - 1);
+			final int base = j * words;
+			for (int k = 0; k < words; k++) {
+				xy[k] ^= v[base + k];
+			}
+			blockMix(xy, x, r);
+		}
+		for (int k = 0; k < words; k++) {
+			int i = offset + k * 4;
+			int w = xy[k];
+			b[i] = (byte) w;
+			b[i + 1] = (byte) (w >>> 8);
+			b[i + 2] = (byte) (w >>> 16);
+			b[i + 3] = (byte) (w >>> 24);
+		}
+	}
+
+	/** BlockMix on the first 32r words of xy, using the second half as scratch. */
+	private static void blockMix(int[] xy, int[] x, int r) {
+		final int words = 32 * r;
+		System.arraycopy(xy, (2 * r - 1) * 16, x, 0, 16);
+		for (int i = 0; i < 2 * r; i++) {
+			for (int k = 0; k < 16; k++) {
+				x[k] ^= xy[i * 16 + k];
+			}
+			salsa20_8(x);
+			// Even blocks go to the first half of the output, odd blocks to the second
+			System.arraycopy(x, 0, xy, words + (i / 2 + (i & 1) * r) * 16, 16);
+		}
+		System.arraycopy(xy, words, xy, 0, words);
+	}
+
+	private static void salsa20_8(int[] b) {
+		int x0 = b[0], x1 = b[1], x2 = b[2], x3 = b[3], x4 = b[4], x5 = b[5], x6 = b[6], x7 = b[7],
+			x8 = b[8], x9 = b[9], x10 = b[10], x11 = b[11], x12 = b[12], x13 = b[13], x14 = b[14], x15 = b[15];
+		for (int i = 0; i < 8; i += 2) {
+			x4 ^= Integer.rotateLeft(x0 + x12, 7);  x8 ^= Integer.rotateLeft(x4 + x0, 9);
+			x12 ^= Integer.rotateLeft(x8 + x4, 13); x0 ^= Integer.rotateLeft(x12 + x8, 18);
+			x9 ^= Integer.rotateLeft(x5 + x1, 7);   x13 ^= Integer.rotateLeft(x9 + x5, 9);
+			x1 ^= Integer.rotateLeft(x13 + x9, 13); x5 ^= Integer.rotateLeft(x1 + x13, 18);
+			x14 ^= Integer.rotateLeft(x10 + x6, 7); x2 ^= Integer.rotateLeft(x14 + x10, 9);
+			x6 ^= Integer.rotateLeft(x2 + x14, 13); x10 ^= Integer.rotateLeft(x6 + x2, 18);
+			x3 ^= Integer.rotateLeft(x15 + x11, 7); x7 ^= Integer.rotateLeft(x3 + x15, 9);
+			x11 ^= Integer.rotateLeft(x7 + x3, 13); x15 ^= Integer.rotateLeft(x11 + x7, 18);
+			x1 ^= Integer.rotateLeft(x0 + x3, 7);   x2 ^= Integer.rotateLeft(x1 + x0, 9);
+			x3 ^= Integer.rotateLeft(x2 + x1, 13);  x0 ^= Integer.rotateLeft(x3 + x2, 18);
+			x6 ^= Integer.rotateLeft(x5 + x4, 7);   x7 ^= Integer.rotateLeft(x6 + x5, 9);
+			x4 ^= Integer.rotateLeft(x7 + x6, 13);  x5 ^= Integer.rotateLeft(x4 + x7, 18);
+			x11 ^= Integer.rotateLeft(x10 + x9, 7); x8 ^= Integer.rotateLeft(x11 + x10, 9);
+			x9 ^= Integer.rotateLeft(x8 + x11, 13); x10 ^= Integer.rotateLeft(x9 + x8, 18);
+			x12 ^= Integer.rotateLeft(x15 + x14, 7); x13 ^= Integer.rotateLeft(x12 + x15, 9);
+			x14 ^= Integer.rotateLeft(x13 + x12, 13); x15 ^= Integer.rotateLeft(x14 + x13, 18);
+		}
+		b[0] += x0; b[1] += x1; b[2] += x2; b[3] += x3; b[4] += x4; b[5] += x5; b[6] += x6; b[7] += x7;
+		b[8] += x8; b[9] += x9; b[10] += x10; b[11] += x11; b[12] += x12; b[13] += x13; b[14] += x14; b[15] += x15;
+	}
+
+	private static void checkCancelled(AtomicBoolean cancelled) {
+		if ((cancelled != null && cancelled.get()) || Thread.currentThread().isInterrupted()) {
+			throw new CancellationException();
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package com.s16.widget;
+
+import java.util.ArrayList;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+/**
+ * A process-wide pool of mutable bitmaps, used for the back buffers of
+ * {@link PassCodeKeyboardView}.
+ *
+ * A view returns its buffer once no frame can draw it anymore: after it has drawn a frame
+ * without it when it is resized or changes keyboard, buffer format or render mode, and
+ * after the next frame when it is detached, see {@link #releaseAfterNextFrame(Bitmap)}.
+ * The next view that needs a buffer takes a pooled one instead of allocating a new one.
+ * A bitmap of the same size and config is taken as is. From KitKat on, a larger one is
+ * reconfigured to the new size, so the keyboard of a recreated activity reuses the buffer
+ * of the previous one after a rotation to a smaller keyboard area. The pool holds a
+ * bounded number of bytes and drops the oldest bitmaps first, and it is emptied when the
+ * system runs low on memory.
+ *
+ * Bitmaps are never recycled here: a bitmap dropped from the pool may still be drawn by
+ * a display list, so it is left to the garbage collector.
+ *
+ * All methods are expected to be called from the main thread.
+ */
+final class BitmapPool {
+
+	private static final int MAX_POOL_BYTES =
+			(int) Math.min(Runtime.getRuntime().maxMemory() / 16, 16 * 1024 * 1024);
+
+	/** Release delay when there is no {@link Choreographer}, a couple of frames */
+	private static final int FALLBACK_RELEASE_DELAY = 50;
+
+	/** Oldest first */
+	private static final ArrayList<Bitmap> sPool = new ArrayList<Bitmap>();
+	private static int sPoolBytes;
+	private static boolean sCallbacksRegistered;
+
+	/** Bitmaps given to {@link #releaseAfterNextFrame(Bitmap)}, not pooled yet */
+	private static final ArrayList<Bitmap> sPendingRelease = new ArrayList<Bitmap>();
+	private static Handler sHandler;
+	/** A Choreographer.FrameCallback, typed as Object for the API levels without it */
+	private static Object sFrameCallback;
+
+	private static final Runnable sReleasePending = new Runnable() {
+		@Override
+		public void run() {
+			final ArrayList<Bitmap> pending = sPendingRelease;
+			for (int i = 0; i < pending.size(); i++) {
+				release(pending.get(i));
+			}
+			pending.clear();
+		}
+	};
+
+	private static final ComponentCallbacks2 sMemoryCallbacks = new ComponentCallbacks2() {
+		@Override
+		public void onTrimMemory(int level) {
+			// Not on TRIM_MEMORY_UI_HIDDEN, sent every time the app goes to the background
+			if (level == TRIM_MEMORY_RUNNING_LOW || level == TRIM_MEMORY_RUNNING_CRITICAL
+					|| level >= TRIM_MEMORY_BACKGROUND) {
+				clear();
+			}
+		}
+
+		@Override
+		public void onLowMemory() {
+			clear();
+		}
+
+		@Override
+		public void onConfigurationChanged(Configuration newConfig) {
+		}
+	};
+
+	private BitmapPool() {
+	}
+
+	/**
+	 * Empties the pool when the system runs low on memory. Only the first call registers,
+	 * on the application context.
+	 */
+	static void registerMemoryCallbacks(Context context) {
+		if (sCallbacksRegistered) return;
+		context.getApplicationContext().registerComponentCallbacks(sMemoryCallbacks);
+		sCallbacksRegistered = true;
+	}
+
+	/**
+	 * Returns a mutable bitmap of the given size and config. A pooled bitmap keeps its
+	 * previous content, so the caller must clear it.
+	 */
+	static Bitmap acquire(int width, int height, Bitmap.Config config) {
+		final ArrayList<Bitmap> pool = sPool;
+		for (int i = pool.size() - 1; i >= 0; i--) {
+			final Bitmap bitmap = pool.get(i);
+			if (bitmap.getWidth() == width && bitmap.getHeight() == height
+					&& bitmap.getConfig() == config) {
+				pool.remove(i);
+				sPoolBytes -= getByteCount(bitmap);
+				return bitmap;
+			}
+		}
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			final Bitmap bitmap = acquireLarger(width, height, config);
+			if (bitmap != null) {
+				return bitmap;
+			}
+		}
+		return Bitmap.createBitmap(width, height, config);
+	}
+
+	/**
+	 * Takes the smallest pooled bitmap whose allocation can hold the given size, and
+	 * reconfigures it to that size. Bitmaps more than twice as large are left in the pool,
+	 * the caller would hold on to the extra memory.
+	 */
+	private static Bitmap acquireLarger(int width, int height, Bitmap.Config config) {
+		// The buffers are either ARGB_8888 or RGB_565
+		final int bytesPerPixel = config == Bitmap.Config.ARGB_8888 ? 4 : 2;
+		final long needed = (long) width * height * bytesPerPixel;
+		final ArrayList<Bitmap> pool = sPool;
+		int best = -1;
+		int bestBytes = Integer.MAX_VALUE;
+		for (int i = 0; i < pool.size(); i++) {
+			final int bytes = pool.get(i).getAllocationByteCount();
+			if (bytes >= needed && bytes <= needed * 2 && bytes < bestBytes) {
+				best = i;
+				bestBytes = bytes;
+			}
+		}
+		if (best < 0) {
+			return null;
+		}
+		final Bitmap bitmap = pool.remove(best);
+		sPoolBytes -= bestBytes;
+		bitmap.reconfigure(width, height, config);
+		return bitmap;
+	}
+
+	/**
+	 * Gives a bitmap back to the pool once the next frame has been drawn, for a bitmap that
+	 * the current frame may still draw, such as the buffer of a view that was just detached.
+	 */
+	static void releaseAfterNextFrame(Bitmap bitmap) {
+		if (bitmap == null) {
+			return;
+		}
+		sPendingRelease.add(bitmap);
+		if (sPendingRelease.size() > 1) {
+			// Already scheduled
+			return;
+		}
+		if (sHandler == null) {
+			sHandler = new Handler(Looper.getMainLooper());
+		}
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			postFrameCallback();
+		} else {
+			sHandler.postDelayed(sReleasePending, FALLBACK_RELEASE_DELAY);
+		}
+	}
+
+	private static void postFrameCallback() {
+		if (sFrameCallback == null) {
+			sFrameCallback = new Choreographer.FrameCallback() {
+				@Override
+				public void doFrame(long frameTimeNanos) {
+					// Frame callbacks run before the traversal, release once it is done
+					sHandler.post(sReleasePending);
+				}
+			};
+		}
+		Choreographer.getInstance().postFrameCallback(
+				(Choreographer.FrameCallback) sFrameCallback);
+	}
+
+	/**
+	 * Gives a bitmap back to the pool. The caller must not use it afterwards, and nothing
+	 * may still draw it: the next {@link #acquire} can hand it out and draw over it.
+	 */
+	static void release(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+			return;
+		}
+		final int bytes = getByteCount(bitmap);
+		if (bytes > MAX_POOL_BYTES) {
+			return;
+		}
+		sPool.add(bitmap);
+		sPoolBytes += bytes;
+		while (sPoolBytes > MAX_POOL_BYTES) {
+			final Bitmap oldest = sPool.remove(0);
+			sPoolBytes -= getByteCount(oldest);
+		}
+	}
+
+	/**
+	 * Drops all pooled bitmaps.
+	 */
+	static void clear() {
+		sPool.clear();
+		sPoolBytes = 0;
+	}
+
+	/**
+	 * Returns true if the bitmap is in the pool, for tests.
+	 */
+	static boolean contains(Bitmap bitmap) {
+		return sPool.contains(bitmap);
+	}
+
+	private static int getByteCount(Bitmap bitmap) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			// A reconfigured bitmap keeps its whole allocation
+			return bitmap.getAllocationByteCount();
+		}
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+}
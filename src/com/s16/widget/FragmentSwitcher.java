@@ -16,25 +16,36 @@
 
 package com.s16.widget;
 
+import java.util.ArrayList;
+
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.database.DataSetObserver;
+import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.app.Fragment;
 import android.support.v4.os.ParcelableCompat;
 import android.support.v4.os.ParcelableCompatCreatorCallbacks;
 import android.support.v4.view.PagerAdapter;
+import android.support.v4.view.ViewCompat;
+import android.support.v13.app.FragmentStatePagerAdapter;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.Adapter;
 import android.widget.FrameLayout;
 
 
 /**
  * A fragment switcher similar to a {@link android.support.v4.view.ViewPager}
- * that cannot be swiped and does not keep offscreen fragments like a ViewPager.
+ * that cannot be swiped. Instead of keeping the neighbours of the current page like a
+ * ViewPager, it keeps the most recently visited pages in a bounded cache, hidden, so
+ * switching back to them does not create them again. See {@link #setOffscreenPageCacheSize(int)}.
  *
  * The instance state of the fragments in the adapter will be managed automatically.
  * Perfect for use with tabs, navigation drawers, or any interface that switches fragments.
@@ -43,23 +54,64 @@ import android.widget.FrameLayout;
  * {@link me.tabak.fragmentswitcher.FragmentArrayPagerAdapter},
  * {@link android.support.v4.app.FragmentStatePagerAdapter},
  * {@link android.support.v4.app.FragmentStatePagerAdapter}
+ *
+ * Pages that are plain views can be supplied by an {@link Adapter} instead, see
+ * {@link #setViewAdapter(Adapter)}. The switcher then attaches and detaches the views
+ * itself, with no FragmentManager involved, and recycles them through
+ * {@link Adapter#getView(int, View, ViewGroup)}.
  */
 public class FragmentSwitcher extends FrameLayout {
 	
   private Fragment mCurrentFragment;
   private static final String TAG = "FragmentSwitcher";
   private static final boolean DEBUG = false;
+  private static final int DEFAULT_OFFSCREEN_CACHE_SIZE = 1;
+  private static final int NO_PENDING_ITEM = -1;
+
+  static class ItemInfo {
+    Fragment fragment;
+    View view;
+    int viewType;
+    int position;
+  }
+
+  // Most recently used first
+  private final ArrayList<ItemInfo> mCachedItems = new ArrayList<ItemInfo>();
+  private int mOffscreenCacheSize = DEFAULT_OFFSCREEN_CACHE_SIZE;
   private PagerAdapter mAdapter;
+  private Adapter mViewAdapter;
+  private View mCurrentView;
+  private int mCurrentViewType;
+  // One detached view per view type, handed back to the view adapter as convertView
+  private final SparseArray<View> mScrapViews = new SparseArray<View>();
   private PagerObserver mObserver;
   private int mExpectedAdapterCount;
   private boolean mPopulatePending;
+  private boolean mNeedsPopulate;
+  private int mPopulateCount;
+  private int mTransactionCount;
   private boolean mFirstLayout;
   private int mRestoredCurItem;
   private Parcelable mRestoredAdapterState;
   private ClassLoader mRestoredClassLoader;
+  // Hierarchy state of view pages not attached since the switcher was restored, by position
+  private Bundle mRestoredPageStates;
   private boolean mInLayout;
   private int mCurrentPosition;
   private OnPageChangeListener mOnPageChangeListener;
+  private int mPendingItem = NO_PENDING_ITEM;
+  private boolean mPendingItemPosted;
+  private int mBatchDepth;
+
+  private final Runnable mApplyPendingItem = new Runnable() {
+    @Override
+    public void run() {
+      mPendingItemPosted = false;
+      if (mBatchDepth == 0) {
+        applyPendingItem();
+      }
+    }
+  };
 
   public FragmentSwitcher(Context context) {
     super(context);
@@ -79,16 +131,22 @@ public class FragmentSwitcher extends FrameLayout {
    * @param adapter Adapter to use
    */
   public void setAdapter(PagerAdapter adapter) {
+    if (adapter != null && mViewAdapter != null) {
+      setViewAdapter(null);
+    }
     if (mAdapter != null) {
       mAdapter.unregisterDataSetObserver(mObserver);
-      mAdapter.startUpdate(this);
+      startUpdate();
       mAdapter.destroyItem(this, mCurrentPosition, mCurrentFragment);
-      mAdapter.finishUpdate(this);
+      trimCachedItems(0);
+      finishUpdate();
+      mCurrentFragment = null;
       mCurrentPosition = 0;
     }
 
     mAdapter = adapter;
     mExpectedAdapterCount = 0;
+    mPendingItem = NO_PENDING_ITEM;
 
     if (mAdapter != null) {
       if (mObserver == null) {
@@ -99,6 +157,7 @@ public class FragmentSwitcher extends FrameLayout {
       final boolean wasFirstLayout = mFirstLayout;
       mFirstLayout = true;
       mExpectedAdapterCount = mAdapter.getCount();
+      mNeedsPopulate = true;
       if (mRestoredCurItem >= 0) {
         mAdapter.restoreState(mRestoredAdapterState, mRestoredClassLoader);
         setCurrentItemInternal(mRestoredCurItem, true);
@@ -113,6 +172,64 @@ public class FragmentSwitcher extends FrameLayout {
     }
   }
 
+  /**
+   * Set an adapter that supplies the pages as plain views. This replaces any
+   * {@link PagerAdapter} set with {@link #setAdapter(PagerAdapter)}.
+   *
+   * Views of pages that are left are detached and kept in the offscreen page cache, then
+   * offered back to the adapter as convertView once evicted. The hierarchy state of the
+   * current and cached pages is saved with the switcher and given back to each page when
+   * it is next attached. As with any other view, only views with ids keep their state.
+   *
+   * @param adapter Adapter to use
+   */
+  public void setViewAdapter(Adapter adapter) {
+    if (adapter != null && mAdapter != null) {
+      setAdapter(null);
+    }
+    if (mViewAdapter != null) {
+      mViewAdapter.unregisterDataSetObserver(mObserver);
+      if (mCurrentView != null) {
+        removeView(mCurrentView);
+        mCurrentView = null;
+      }
+      trimCachedItems(0);
+      mScrapViews.clear();
+      mCurrentPosition = 0;
+      mRestoredPageStates = null;
+    }
+
+    mViewAdapter = adapter;
+    mExpectedAdapterCount = 0;
+    mPendingItem = NO_PENDING_ITEM;
+
+    if (mViewAdapter != null) {
+      if (mObserver == null) {
+        mObserver = new PagerObserver();
+      }
+      mViewAdapter.registerDataSetObserver(mObserver);
+      mExpectedAdapterCount = mViewAdapter.getCount();
+      mNeedsPopulate = true;
+      if (mRestoredCurItem >= 0) {
+        setCurrentItemInternal(mRestoredCurItem, true);
+        mRestoredCurItem = -1;
+        mRestoredAdapterState = null;
+        mRestoredClassLoader = null;
+      } else {
+        requestLayout();
+      }
+    }
+  }
+
+  /**
+   * Retrieve the current adapter supplying view pages.
+   *
+   * @return The currently registered view adapter
+   */
+  public Adapter getViewAdapter() {
+    return mViewAdapter;
+  }
+
   private class PagerObserver extends DataSetObserver {
     @Override
     public void onChanged() {
@@ -124,37 +241,106 @@ public class FragmentSwitcher extends FrameLayout {
     }
   }
 
+  /**
+   * Returns the selected page, including a switch requested with {@link #setCurrentItem(int)}
+   * that has not been applied yet.
+   */
   public int getCurrentItem() {
-    return mCurrentPosition;
+    return mPendingItem != NO_PENDING_ITEM ? mPendingItem : mCurrentPosition;
   }
 
   public Fragment getCurrentFragment() {
     return mCurrentFragment;
   }
 
+  /**
+   * Returns the view of the current page, in either adapter mode.
+   */
+  public View getCurrentView() {
+    return mCurrentFragment != null ? mCurrentFragment.getView() : mCurrentView;
+  }
+
+  private int getItemCount() {
+    if (mAdapter != null) {
+      return mAdapter.getCount();
+    }
+    return mViewAdapter != null ? mViewAdapter.getCount() : 0;
+  }
+
   /**
    * Set the currently selected page.
    *
+   * The switch is applied on the next animation frame, or at {@link #endBatch()} inside
+   * a batch. When this is called several times before then, only the last page is
+   * instantiated and committed.
+   *
    * @param item Item index to select
    */
   public void setCurrentItem(int item) {
+    // Clamped here rather than when applied, a negative item would read as no pending item
+    mPendingItem = Math.max(0, item);
+    if (mBatchDepth > 0) {
+      return;
+    }
+    if (mFirstLayout) {
+      // Nothing is instantiated before the first layout anyway
+      applyPendingItem();
+    } else if (!mPendingItemPosted) {
+      mPendingItemPosted = true;
+      ViewCompat.postOnAnimation(this, mApplyPendingItem);
+    }
+  }
+
+  /**
+   * Starts a batch of page switches. Calls to {@link #setCurrentItem(int)} are held until
+   * the matching {@link #endBatch()}, which applies only the last one. Batches can be nested.
+   */
+  public void beginBatch() {
+    mBatchDepth++;
+  }
+
+  /**
+   * Ends a batch started with {@link #beginBatch()}. Ending the outermost batch switches
+   * to the last requested page right away.
+   */
+  public void endBatch() {
+    if (mBatchDepth == 0) {
+      throw new IllegalStateException("endBatch() without beginBatch()");
+    }
+    if (--mBatchDepth == 0) {
+      if (mPendingItemPosted) {
+        removeCallbacks(mApplyPendingItem);
+        mPendingItemPosted = false;
+      }
+      applyPendingItem();
+    }
+  }
+
+  private void applyPendingItem() {
+    if (mPendingItem == NO_PENDING_ITEM) {
+      return;
+    }
+    final int item = mPendingItem;
+    mPendingItem = NO_PENDING_ITEM;
     setCurrentItemInternal(item, false);
   }
 
   private void setCurrentItemInternal(int item, boolean always) {
-    if (mAdapter == null || mAdapter.getCount() <= 0) {
+    final int count = getItemCount();
+    if (count <= 0) {
       return;
     }
-    if (!always && mCurrentPosition == item && mCurrentFragment != null) {
+    if (!always && mCurrentPosition == item && hasCurrentPage()) {
       return;
     }
 
     if (item < 0) {
       item = 0;
-    } else if (item >= mAdapter.getCount()) {
-      item = mAdapter.getCount() - 1;
+    } else if (item >= count) {
+      item = count - 1;
     }
 
+    mNeedsPopulate = true;
     if (mFirstLayout) {
       // We don't have any idea how big we are yet and shouldn't have any pages either.
       // Just set things up and let the pending layout handle things.
@@ -181,6 +367,10 @@ public class FragmentSwitcher extends FrameLayout {
   }
 
   private void dataSetChanged() {
+    if (mViewAdapter != null) {
+      viewDataSetChanged();
+      return;
+    }
     // This method only gets called if our observer is attached, so mAdapter is non-null.
 
     final int adapterCount = mAdapter.getCount();
@@ -189,11 +379,29 @@ public class FragmentSwitcher extends FrameLayout {
     int newCurrItem = mCurrentPosition;
 
     boolean isUpdating = false;
+    for (int i = mCachedItems.size() - 1; i >= 0; i--) {
+      final ItemInfo ii = mCachedItems.get(i);
+      final int pos = mAdapter.getItemPosition(ii.fragment);
+      if (pos == PagerAdapter.POSITION_UNCHANGED) {
+        continue;
+      }
+      if (pos == PagerAdapter.POSITION_NONE) {
+        if (!isUpdating) {
+          startUpdate();
+          isUpdating = true;
+        }
+        mCachedItems.remove(i);
+        mAdapter.destroyItem(this, ii.position, ii.fragment);
+      } else {
+        ii.position = pos;
+      }
+    }
+
     final int newPos = mAdapter.getItemPosition(mCurrentFragment);
 
     if (newPos == PagerAdapter.POSITION_NONE) {
       if (!isUpdating) {
-        mAdapter.startUpdate(this);
+        startUpdate();
         isUpdating = true;
       }
 
@@ -210,7 +418,7 @@ public class FragmentSwitcher extends FrameLayout {
     }
 
     if (isUpdating) {
-      mAdapter.finishUpdate(this);
+      finishUpdate();
     }
 
     if (needPopulate) {
@@ -219,12 +427,209 @@ public class FragmentSwitcher extends FrameLayout {
     }
   }
 
+  /**
+   * Notify the switcher that pages were inserted in the adapter. Unlike
+   * {@link PagerAdapter#notifyDataSetChanged()}, the current page is kept and only its
+   * position is adjusted.
+   *
+   * With a fragment adapter, the pages keep their fragments while their positions shift,
+   * so the adapter must find a page's fragment by something that moves with the page. A
+   * {@link android.support.v13.app.FragmentPagerAdapter} must return a stable id per page
+   * from {@link android.support.v13.app.FragmentPagerAdapter#getItemId(int)}, not the
+   * default position. A {@link FragmentStatePagerAdapter} keeps its fragments and their
+   * saved state by position and is rejected, use {@link PagerAdapter#notifyDataSetChanged()}
+   * with it.
+   *
+   * @param position Position of the first inserted page
+   * @param count Number of pages inserted
+   * @throws IllegalStateException if the adapter is a {@link FragmentStatePagerAdapter}
+   */
+  public void notifyItemRangeInserted(int position, int count) {
+    checkPositionsCanShift();
+    mExpectedAdapterCount = getItemCount();
+    mRestoredPageStates = null;
+    for (int i = 0; i < mCachedItems.size(); i++) {
+      final ItemInfo ii = mCachedItems.get(i);
+      if (ii.position >= position) {
+        ii.position += count;
+      }
+    }
+    if (mPendingItem >= position) {
+      mPendingItem += count;
+    }
+    if (!hasCurrentPage()) {
+      setCurrentItemInternal(mCurrentPosition, true);
+    } else if (mCurrentPosition >= position) {
+      setCurrentPosition(mCurrentPosition + count);
+    }
+  }
+
+  public void notifyItemInserted(int position) {
+    notifyItemRangeInserted(position, 1);
+  }
+
+  /**
+   * Notify the switcher that pages were removed from the adapter. Cached pages in the
+   * range are destroyed. The current page is kept unless it was removed, in which case
+   * the page that took its place is shown. The adapter requirements of
+   * {@link #notifyItemRangeInserted(int, int)} apply.
+   *
+   * @param position Position the first removed page had
+   * @param count Number of pages removed
+   * @throws IllegalStateException if the adapter is a {@link FragmentStatePagerAdapter}
+   */
+  public void notifyItemRangeRemoved(int position, int count) {
+    checkPositionsCanShift();
+    final int end = position + count;
+    final int adapterCount = getItemCount();
+    mExpectedAdapterCount = adapterCount;
+    mRestoredPageStates = null;
+
+    startUpdate();
+    for (int i = mCachedItems.size() - 1; i >= 0; i--) {
+      final ItemInfo ii = mCachedItems.get(i);
+      if (ii.position >= end) {
+        ii.position -= count;
+      } else if (ii.position >= position) {
+        mCachedItems.remove(i);
+        destroyCachedItem(ii);
+      }
+    }
+    boolean currentRemoved = false;
+    if (hasCurrentPage() && mCurrentPosition >= position && mCurrentPosition < end) {
+      currentRemoved = true;
+      if (mCurrentFragment != null) {
+        mAdapter.destroyItem(this, mCurrentPosition, mCurrentFragment);
+        mCurrentFragment = null;
+      } else {
+        removeView(mCurrentView);
+        recycleView(mCurrentView, mCurrentViewType);
+        mCurrentView = null;
+      }
+    }
+    finishUpdate();
+
+    if (mPendingItem >= end) {
+      mPendingItem -= count;
+    } else if (mPendingItem >= position) {
+      mPendingItem = position;
+    }
+    if (currentRemoved || !hasCurrentPage()) {
+      mCurrentPosition = Math.max(0, Math.min(position, adapterCount - 1));
+      setCurrentItemInternal(mCurrentPosition, true);
+    } else if (mCurrentPosition >= end) {
+      setCurrentPosition(mCurrentPosition - count);
+    }
+  }
+
+  public void notifyItemRemoved(int position) {
+    notifyItemRangeRemoved(position, 1);
+  }
+
+  /**
+   * Notify the switcher that a page moved in the adapter. No page is destroyed. The
+   * adapter requirements of {@link #notifyItemRangeInserted(int, int)} apply.
+   *
+   * @param fromPosition Previous position of the page
+   * @param toPosition New position of the page
+   * @throws IllegalStateException if the adapter is a {@link FragmentStatePagerAdapter}
+   */
+  public void notifyItemMoved(int fromPosition, int toPosition) {
+    checkPositionsCanShift();
+    mRestoredPageStates = null;
+    for (int i = 0; i < mCachedItems.size(); i++) {
+      final ItemInfo ii = mCachedItems.get(i);
+      ii.position = movedPosition(ii.position, fromPosition, toPosition);
+    }
+    if (mPendingItem != NO_PENDING_ITEM) {
+      mPendingItem = movedPosition(mPendingItem, fromPosition, toPosition);
+    }
+    if (hasCurrentPage()) {
+      setCurrentPosition(movedPosition(mCurrentPosition, fromPosition, toPosition));
+    }
+  }
+
+  private void checkPositionsCanShift() {
+    if (mAdapter instanceof FragmentStatePagerAdapter) {
+      throw new IllegalStateException("FragmentStatePagerAdapter keeps its fragments by"
+          + " position, call notifyDataSetChanged() instead of notifying single items");
+    }
+  }
+
+  private static int movedPosition(int position, int from, int to) {
+    if (position == from) {
+      return to;
+    }
+    if (from < to && position > from && position <= to) {
+      return position - 1;
+    }
+    if (to < from && position >= to && position < from) {
+      return position + 1;
+    }
+    return position;
+  }
+
+  private boolean hasCurrentPage() {
+    return mCurrentFragment != null || mCurrentView != null;
+  }
+
+  /**
+   * Changes the position of the current page without changing the page itself.
+   */
+  private void setCurrentPosition(int position) {
+    if (mCurrentPosition == position) {
+      return;
+    }
+    mCurrentPosition = position;
+    if (mOnPageChangeListener != null) {
+      mOnPageChangeListener.onPageChanged(mCurrentPosition);
+    }
+  }
+
+  private void viewDataSetChanged() {
+    final int adapterCount = mViewAdapter.getCount();
+    mExpectedAdapterCount = adapterCount;
+    mRestoredPageStates = null;
+    // Views carry no identity, so cached views may no longer match their position
+    trimCachedItems(0);
+
+    if (mCurrentView == null) {
+      setCurrentItemInternal(mCurrentPosition, true);
+      requestLayout();
+      return;
+    }
+    if (adapterCount == 0) {
+      removeView(mCurrentView);
+      recycleView(mCurrentView, mCurrentViewType);
+      mCurrentView = null;
+      return;
+    }
+
+    // Rebind the current page, in place when the adapter reuses the view
+    final int position = Math.min(mCurrentPosition, adapterCount - 1);
+    final int viewType = mViewAdapter.getItemViewType(position);
+    final View view = obtainView(position, viewType == mCurrentViewType ? mCurrentView : null);
+    if (view != mCurrentView) {
+      removeView(mCurrentView);
+      recycleView(mCurrentView, mCurrentViewType);
+      addView(view);
+      mCurrentView = view;
+    }
+    mCurrentViewType = viewType;
+    if (position != mCurrentPosition) {
+      mCurrentPosition = position;
+      if (mOnPageChangeListener != null) {
+        mOnPageChangeListener.onPageChanged(mCurrentPosition);
+      }
+    }
+  }
+
   private void populate() {
     populate(mCurrentPosition);
   }
 
   private void populate(int position) {
-    if (mAdapter == null) {
+    if (mAdapter == null && mViewAdapter == null) {
       return;
     }
 
@@ -244,7 +649,7 @@ public class FragmentSwitcher extends FrameLayout {
       return;
     }
 
-    final int N = mAdapter.getCount();
+    final int N = getItemCount();
 
     if (N != mExpectedAdapterCount) {
       String resName;
@@ -253,23 +658,37 @@ public class FragmentSwitcher extends FrameLayout {
       } catch (Resources.NotFoundException e) {
         resName = Integer.toHexString(getId());
       }
+      final Object adapter = mAdapter != null ? mAdapter : mViewAdapter;
       throw new IllegalStateException("The application's PagerAdapter changed the adapter's" +
                                       " contents without calling PagerAdapter#notifyDataSetChanged!" +
                                       " Expected adapter item count: " + mExpectedAdapterCount + ", found: " + N +
                                       " Pager id: " + resName +
                                       " Pager class: " + getClass() +
-                                      " Problematic adapter: " + mAdapter.getClass());
+                                      " Problematic adapter: " + adapter.getClass());
     }
 
-    mAdapter.startUpdate(this);
-
-    if (mCurrentFragment != null && mCurrentPosition != position) {
-      mAdapter.destroyItem(this, mCurrentPosition, mCurrentFragment);
+    mNeedsPopulate = false;
+    mPopulateCount++;
+    if (mViewAdapter != null) {
+      populateView(position);
+      return;
     }
+    startUpdate();
 
     // Locate the currently focused item or add it if needed.
     if ((mCurrentFragment == null || mCurrentPosition != position) && mAdapter.getCount() > 0) {
-      mCurrentFragment = addNewItem(position);
+      final ItemInfo cached = removeCachedItem(position);
+      final Fragment previous = mCurrentFragment;
+      if (previous != null) {
+        cacheItem(mCurrentPosition, previous, null, 0);
+      }
+      mCurrentFragment = cached != null ? cached.fragment : addNewItem(position);
+      if (cached == null && (mCurrentFragment == previous || isCachedFragment(mCurrentFragment))) {
+        // The adapter still finds the page by its old position, see notifyItemRangeInserted
+        throw new IllegalStateException("FragmentSwitcher's adapter returned the fragment of"
+            + " another page for position " + position + ", its getItemId() must return"
+            + " stable ids when pages are inserted, removed or moved");
+      }
       mCurrentPosition = position;
       if (mOnPageChangeListener != null) {
         mOnPageChangeListener.onPageChanged(mCurrentPosition);
@@ -278,21 +697,253 @@ public class FragmentSwitcher extends FrameLayout {
 
     mAdapter.setPrimaryItem(this, mCurrentPosition, mCurrentFragment);
 
-    mAdapter.finishUpdate(this);
+    finishUpdate();
+    updatePageVisibility();
+  }
+
+  private void populateView(int position) {
+    if ((mCurrentView == null || mCurrentPosition != position) && mViewAdapter.getCount() > 0) {
+      final ItemInfo cached = removeCachedItem(position);
+      if (mCurrentView != null) {
+        removeView(mCurrentView);
+        cacheItem(mCurrentPosition, null, mCurrentView, mCurrentViewType);
+      }
+      if (cached != null) {
+        mCurrentView = cached.view;
+        mCurrentViewType = cached.viewType;
+      } else {
+        mCurrentViewType = mViewAdapter.getItemViewType(position);
+        mCurrentView = obtainView(position, null);
+      }
+      addView(mCurrentView);
+      if (cached == null) {
+        // The hierarchy was restored before this page existed, give it its own state now
+        restorePageState(mCurrentView, position);
+      }
+      mCurrentPosition = position;
+      if (mOnPageChangeListener != null) {
+        mOnPageChangeListener.onPageChanged(mCurrentPosition);
+      }
+    }
+  }
+
+  private void restorePageState(View view, int position) {
+    if (mRestoredPageStates == null) {
+      return;
+    }
+    final String key = String.valueOf(position);
+    final SparseArray<Parcelable> state = mRestoredPageStates.getSparseParcelableArray(key);
+    if (state != null) {
+      mRestoredPageStates.remove(key);
+      view.restoreHierarchyState(state);
+    }
+  }
+
+  private static void savePageState(Bundle states, View view, int position) {
+    final SparseArray<Parcelable> state = new SparseArray<Parcelable>();
+    view.saveHierarchyState(state);
+    states.putSparseParcelableArray(String.valueOf(position), state);
+  }
+
+  private View obtainView(int position, View convertView) {
+    if (convertView == null) {
+      final int viewType = mViewAdapter.getItemViewType(position);
+      convertView = mScrapViews.get(viewType);
+      mScrapViews.remove(viewType);
+    }
+    final View view = mViewAdapter.getView(position, convertView, this);
+    if (view == null) {
+      throw new IllegalStateException("FragmentSwitcher's view adapter returned a null view");
+    }
+    return view;
+  }
+
+  private void recycleView(View view, int viewType) {
+    if (viewType != Adapter.IGNORE_ITEM_VIEW_TYPE) {
+      mScrapViews.put(viewType, view);
+    }
+  }
+
+  private ItemInfo removeCachedItem(int position) {
+    for (int i = 0; i < mCachedItems.size(); i++) {
+      final ItemInfo ii = mCachedItems.get(i);
+      if (ii.position == position) {
+        mCachedItems.remove(i);
+        return ii;
+      }
+    }
+    return null;
+  }
+
+  private boolean isCachedFragment(Fragment fragment) {
+    for (int i = 0; i < mCachedItems.size(); i++) {
+      if (mCachedItems.get(i).fragment == fragment) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void cacheItem(int position, Fragment fragment, View view, int viewType) {
+    final ItemInfo ii = new ItemInfo();
+    ii.fragment = fragment;
+    ii.view = view;
+    ii.viewType = viewType;
+    ii.position = position;
+    mCachedItems.add(0, ii);
+    trimCachedItems(mOffscreenCacheSize);
+  }
+
+  /**
+   * Destroys the least recently used cached pages until at most maxSize remain.
+   * Must be called between {@link #startUpdate()} and {@link #finishUpdate()}.
+   */
+  private void trimCachedItems(int maxSize) {
+    while (mCachedItems.size() > maxSize) {
+      final ItemInfo ii = mCachedItems.remove(mCachedItems.size() - 1);
+      if (DEBUG) Log.i(TAG, "evicting cached page " + ii.position);
+      destroyCachedItem(ii);
+    }
+  }
+
+  private void destroyCachedItem(ItemInfo ii) {
+    if (ii.fragment != null) {
+      mAdapter.destroyItem(this, ii.position, ii.fragment);
+    } else {
+      recycleView(ii.view, ii.viewType);
+    }
+  }
+
+  /**
+   * Shows the view of the current fragment and hides all others, including the views of
+   * cached fragments and any fragment the FragmentManager restored in this container.
+   */
+  private void updatePageVisibility() {
+    final View current = mCurrentFragment != null ? mCurrentFragment.getView() : null;
+    if (current == null) {
+      return;
+    }
+    for (int i = 0; i < getChildCount(); i++) {
+      final View child = getChildAt(i);
+      final int visibility = child == current ? View.VISIBLE : View.GONE;
+      if (child.getVisibility() != visibility) {
+        child.setVisibility(visibility);
+      }
+    }
+  }
+
+  /**
+   * Set how many previously visited pages are kept, hidden, once they are no longer
+   * current. The least recently used page is destroyed when the cache is full.
+   * Cached pages are also released when the system is low on memory.
+   *
+   * @param size Number of offscreen pages to keep, 0 to destroy pages as soon as they
+   *             are left. Defaults to 1.
+   */
+  public void setOffscreenPageCacheSize(int size) {
+    if (size < 0) {
+      throw new IllegalArgumentException("size must not be negative");
+    }
+    mOffscreenCacheSize = size;
+    releaseCachedItems(size);
+  }
+
+  public int getOffscreenPageCacheSize() {
+    return mOffscreenCacheSize;
+  }
+
+  private void releaseCachedItems(int maxSize) {
+    if (maxSize == 0) {
+      mScrapViews.clear();
+    }
+    if (mCachedItems.size() <= maxSize) {
+      return;
+    }
+    startUpdate();
+    trimCachedItems(maxSize);
+    finishUpdate();
+  }
+
+  private final ComponentCallbacks2 mMemoryCallbacks = new ComponentCallbacks2() {
+    @Override
+    public void onTrimMemory(int level) {
+      // TRIM_MEMORY_UI_HIDDEN is sent whenever the app goes to the background, it is not
+      // memory pressure and comes after the state was saved
+      if (level == TRIM_MEMORY_RUNNING_LOW || level == TRIM_MEMORY_RUNNING_CRITICAL
+          || level >= TRIM_MEMORY_BACKGROUND) {
+        releaseCachedItems(0);
+      }
+    }
+
+    @Override
+    public void onLowMemory() {
+      releaseCachedItems(0);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+  };
+
+  private void startUpdate() {
+    if (mAdapter != null) {
+      mAdapter.startUpdate(this);
+    }
+  }
+
+  private void finishUpdate() {
+    if (mAdapter != null) {
+      // FragmentPagerAdapter commits its pending fragment transaction here
+      mAdapter.finishUpdate(this);
+      mTransactionCount++;
+    }
+  }
+
+  /**
+   * Returns how many times the adapter has been asked to populate the current page.
+   * Layout passes that did not change the adapter, position or attach state don't count.
+   */
+  public int getPopulateCount() {
+    return mPopulateCount;
+  }
+
+  /**
+   * Returns how many adapter update cycles ran, each ending with
+   * {@link PagerAdapter#finishUpdate(ViewGroup)}, where fragment transactions are committed.
+   */
+  public int getTransactionCount() {
+    return mTransactionCount;
+  }
+
+  public void resetCounters() {
+    mPopulateCount = 0;
+    mTransactionCount = 0;
   }
 
   @Override
   protected void onAttachedToWindow() {
     super.onAttachedToWindow();
     mFirstLayout = true;
+    mNeedsPopulate = true;
+    getContext().registerComponentCallbacks(mMemoryCallbacks);
+  }
+
+  @Override
+  protected void onDetachedFromWindow() {
+    getContext().unregisterComponentCallbacks(mMemoryCallbacks);
+    super.onDetachedFromWindow();
   }
 
   @Override
   protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+    // Only reach the adapter when something it depends on changed, not on every measure.
+    // Populate first so a newly attached page is measured in this pass.
+    if (mNeedsPopulate) {
+      mInLayout = true;
+      populate();
+      mInLayout = false;
+    }
     super.onMeasure(widthMeasureSpec, heightMeasureSpec);
-    mInLayout = true;
-    populate();
-    mInLayout = false;
   }
 
   /**
@@ -301,6 +952,8 @@ public class FragmentSwitcher extends FrameLayout {
   public static class SavedState extends BaseSavedState {
     int position;
     Parcelable adapterState;
+    // Hierarchy state of the current and cached view pages, keyed by position
+    Bundle pageStates;
     ClassLoader loader;
 
     public SavedState(Parcelable superState) {
@@ -312,6 +965,7 @@ public class FragmentSwitcher extends FrameLayout {
       super.writeToParcel(out, flags);
       out.writeInt(position);
       out.writeParcelable(adapterState, flags);
+      out.writeBundle(pageStates);
     }
 
     @Override
@@ -341,6 +995,7 @@ public class FragmentSwitcher extends FrameLayout {
       }
       position = in.readInt();
       adapterState = in.readParcelable(loader);
+      pageStates = in.readBundle(loader);
       this.loader = loader;
     }
   }
@@ -352,6 +1007,24 @@ public class FragmentSwitcher extends FrameLayout {
     ss.position = mCurrentPosition;
     if (mAdapter != null) {
       ss.adapterState = mAdapter.saveState();
+    } else if (mViewAdapter != null) {
+      // Pages are attached after the window restores its hierarchy, and cached pages are
+      // detached, so the state of each page is kept here instead
+      final Bundle pageStates = new Bundle();
+      if (mRestoredPageStates != null) {
+        // Pages restored earlier that were not visited since
+        pageStates.putAll(mRestoredPageStates);
+      }
+      if (mCurrentView != null) {
+        savePageState(pageStates, mCurrentView, mCurrentPosition);
+      }
+      for (int i = 0; i < mCachedItems.size(); i++) {
+        final ItemInfo ii = mCachedItems.get(i);
+        if (ii.view != null) {
+          savePageState(pageStates, ii.view, ii.position);
+        }
+      }
+      ss.pageStates = pageStates;
     }
     return ss;
   }
@@ -365,10 +1038,22 @@ public class FragmentSwitcher extends FrameLayout {
 
     SavedState ss = (SavedState)state;
     super.onRestoreInstanceState(ss.getSuperState());
+    mRestoredPageStates = ss.pageStates;
+    if (mCurrentView != null) {
+      restorePageState(mCurrentView, mCurrentPosition);
+    }
+    for (int i = 0; i < mCachedItems.size(); i++) {
+      final ItemInfo ii = mCachedItems.get(i);
+      if (ii.view != null) {
+        restorePageState(ii.view, ii.position);
+      }
+    }
 
     if (mAdapter != null) {
       mAdapter.restoreState(ss.adapterState, ss.loader);
       setCurrentItemInternal(ss.position, true);
+    } else if (mViewAdapter != null) {
+      setCurrentItemInternal(ss.position, true);
     } else {
       mRestoredCurItem = ss.position;
       mRestoredAdapterState = ss.adapterState;
@@ -0,0 +1,179 @@
+package com.s16.widget;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Measures the latency of a keystroke from the touch event on {@link PassCodeKeyboardView}
+ * until the dot is drawn by {@link PassCodeView}.
+ *
+ * Each stage is recorded as the time elapsed since the {@link android.view.MotionEvent}
+ * that produced the keystroke, and the last samples of every stage are kept in a rolling
+ * window from which percentiles can be queried. A probe is only consulted when it has been
+ * set with {@link PassCodeKeyboardView#setLatencyProbe}, so the views cost nothing more
+ * than a null check when no probe is installed.
+ *
+ * All methods are expected to be called from the main thread.
+ */
+public class InputLatencyProbe {
+
+	/** The touch event reached {@link PassCodeKeyboardView#onTouchEvent}. */
+	public static final int STAGE_INPUT = 0;
+	/** The touch point was resolved to a key. */
+	public static final int STAGE_HIT_TEST = 1;
+	/** The key is about to be sent to the keyboard action listeners. */
+	public static final int STAGE_DISPATCH = 2;
+	/** The passcode text watcher saw the new text. */
+	public static final int STAGE_TEXT_WATCHER = 3;
+	/** The synthetic key event went through the text view. */
+	public static final int STAGE_KEY_EVENT = 4;
+	/** The passcode was drawn with the new digit. */
+	public static final int STAGE_FRAME = 5;
+
+	public static final int STAGE_COUNT = 6;
+
+	private static final String[] STAGE_NAMES = {
+		"input", "hit-test", "dispatch", "text-watcher", "key-event", "frame"
+	};
+
+	private static final int DEFAULT_WINDOW_SIZE = 256;
+	private static final long NANOS_PER_MILLI = 1000000L;
+
+	private final long[][] mSamples;
+	private final int[] mSampleCount;
+	private final int[] mSampleNext;
+	private final int mWindowSize;
+
+	private boolean mEnabled = true;
+	/** Origin of the keystroke in flight, 0 when there is none */
+	private long mOriginNanos;
+	/** Stages already recorded for the keystroke in flight, one bit per stage */
+	private int mRecordedStages;
+
+	public InputLatencyProbe() {
+		this(DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * @param windowSize number of most recent samples kept for each stage
+	 */
+	public InputLatencyProbe(int windowSize) {
+		if (windowSize < 1) {
+			throw new IllegalArgumentException("windowSize must be positive");
+		}
+		mWindowSize = windowSize;
+		mSamples = new long[STAGE_COUNT][windowSize];
+		mSampleCount = new int[STAGE_COUNT];
+		mSampleNext = new int[STAGE_COUNT];
+	}
+
+	public void setEnabled(boolean enabled) {
+		mEnabled = enabled;
+		mOriginNanos = 0;
+	}
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	/**
+	 * Starts timing a keystroke.
+	 * @param eventTimeMillis the event time of the touch, in the
+	 * {@link android.os.SystemClock#uptimeMillis()} time base
+	 */
+	public void beginKeystroke(long eventTimeMillis) {
+		if (!mEnabled) return;
+		mOriginNanos = eventTimeMillis * NANOS_PER_MILLI;
+		mRecordedStages = 0;
+		mark(STAGE_INPUT);
+	}
+
+	/**
+	 * Records that the keystroke in flight reached a stage. Only the first time a stage is
+	 * reached is recorded.
+	 */
+	public void mark(int stage) {
+		if (!mEnabled || mOriginNanos == 0) return;
+		final int bit = 1 << stage;
+		if ((mRecordedStages & bit) != 0) return;
+		mRecordedStages |= bit;
+		record(stage, System.nanoTime() - mOriginNanos);
+	}
+
+	/**
+	 * Records the final stage and ends the keystroke in flight.
+	 */
+	public void endKeystroke(int stage) {
+		mark(stage);
+		mOriginNanos = 0;
+	}
+
+	public boolean isKeystrokeInFlight() {
+		return mOriginNanos != 0;
+	}
+
+	private void record(int stage, long nanos) {
+		final int next = mSampleNext[stage];
+		mSamples[stage][next] = nanos;
+		mSampleNext[stage] = (next + 1) % mWindowSize;
+		if (mSampleCount[stage] < mWindowSize) {
+			mSampleCount[stage]++;
+		}
+	}
+
+	/**
+	 * Returns the number of samples currently held for a stage.
+	 */
+	public int getSampleCount(int stage) {
+		return mSampleCount[stage];
+	}
+
+	/**
+	 * Returns a percentile of the recorded latencies of a stage.
+	 * @param stage one of the STAGE_ constants
+	 * @param percentile between 0 and 100
+	 * @return the latency in nanoseconds, or -1 if nothing has been recorded
+	 */
+	public long getPercentile(int stage, float percentile) {
+		final int count = mSampleCount[stage];
+		if (count == 0) return -1;
+		final long[] sorted = Arrays.copyOf(mSamples[stage], count);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100f * count) - 1;
+		index = Math.max(0, Math.min(count - 1, index));
+		return sorted[index];
+	}
+
+	public void reset() {
+		Arrays.fill(mSampleCount, 0);
+		Arrays.fill(mSampleNext, 0);
+		mOriginNanos = 0;
+	}
+
+	/**
+	 * Writes the median, 90th and 99th percentiles of every stage, in milliseconds.
+	 */
+	public void dump(PrintWriter pw) {
+		pw.println("InputLatencyProbe (ms since touch event):");
+		for (int stage = 0; stage < STAGE_COUNT; stage++) {
+			pw.print("  ");
+			pw.print(STAGE_NAMES[stage]);
+			pw.print(": n=");
+			pw.print(mSampleCount[stage]);
+			if (mSampleCount[stage] > 0) {
+				pw.print(" p50=");
+				pw.print(toMillis(getPercentile(stage, 50)));
+				pw.print(" p90=");
+				pw.print(toMillis(getPercentile(stage, 90)));
+				pw.print(" p99=");
+				pw.print(toMillis(getPercentile(stage, 99)));
+			}
+			pw.println();
+		}
+		pw.flush();
+	}
+
+	private static float toMillis(long nanos) {
+		return nanos / (float) NANOS_PER_MILLI;
+	}
+}
@@ -0,0 +1,103 @@
+package com.s16.widget;
+
+import java.util.ArrayList;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+
+/**
+ * Key backgrounds pre-rasterized once per drawable, key size and state, and shared by all
+ * {@link PassCodeKeyboardView} instances in the process.
+ *
+ * Drawables loaded from the same resource share their {@link Drawable.ConstantState}, which
+ * identifies the background together with the key size in pixels. Only the most recently
+ * used sizes are kept, so stamps of a size no keyboard uses anymore are dropped once
+ * keyboards are resized.
+ *
+ * All methods are expected to be called from the main thread.
+ */
+final class KeyBackgroundStamps {
+
+	/** Sizes kept at once, enough for a couple of keyboards and one pending resize */
+	private static final int MAX_STAMPS = 4;
+
+	static final int STATE_NORMAL = 0;
+	static final int STATE_PRESSED = 1;
+	static final int STATE_COUNT = 2;
+
+	private static final int[][] DRAWABLE_STATES = {
+		{},
+		{ android.R.attr.state_pressed }
+	};
+
+	/** Most recently used first */
+	private static final ArrayList<KeyBackgroundStamps> sStamps = new ArrayList<KeyBackgroundStamps>();
+
+	private final Drawable.ConstantState mConstantState;
+	private final int mWidth;
+	private final int mHeight;
+	private final Bitmap[] mBitmaps = new Bitmap[STATE_COUNT];
+
+	private KeyBackgroundStamps(Drawable.ConstantState constantState, int width, int height) {
+		mConstantState = constantState;
+		mWidth = width;
+		mHeight = height;
+	}
+
+	/**
+	 * Returns the stamps of a key background at the given size, or null if the drawable
+	 * cannot be shared.
+	 */
+	static KeyBackgroundStamps obtain(Drawable background, int width, int height) {
+		final Drawable.ConstantState constantState = background.getConstantState();
+		if (constantState == null || width <= 0 || height <= 0) {
+			return null;
+		}
+		final ArrayList<KeyBackgroundStamps> stamps = sStamps;
+		for (int i = 0; i < stamps.size(); i++) {
+			final KeyBackgroundStamps s = stamps.get(i);
+			if (s.mConstantState == constantState && s.mWidth == width && s.mHeight == height) {
+				if (i > 0) {
+					stamps.remove(i);
+					stamps.add(0, s);
+				}
+				return s;
+			}
+		}
+		final KeyBackgroundStamps s = new KeyBackgroundStamps(constantState, width, height);
+		stamps.add(0, s);
+		while (stamps.size() > MAX_STAMPS) {
+			// Keyboards still holding an evicted entry keep using it until they resize
+			stamps.remove(stamps.size() - 1);
+		}
+		return s;
+	}
+
+	boolean matches(Drawable background, int width, int height) {
+		return mWidth == width && mHeight == height
+				&& mConstantState == background.getConstantState();
+	}
+
+	/**
+	 * Returns the background rasterized in a state, drawing it on first use.
+	 * @param background a drawable sharing this stamp's constant state, used to rasterize
+	 * the stamp if needed. Its state and bounds are changed.
+	 * @return the stamp, or null if no bitmap could be allocated
+	 */
+	Bitmap get(int state, Drawable background) {
+		Bitmap bitmap = mBitmaps[state];
+		if (bitmap == null) {
+			try {
+				bitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+			} catch (OutOfMemoryError e) {
+				return null;
+			}
+			background.setState(DRAWABLE_STATES[state]);
+			background.setBounds(0, 0, mWidth, mHeight);
+			background.draw(new Canvas(bitmap));
+			mBitmaps[state] = bitmap;
+		}
+		return bitmap;
+	}
+}
@@ -0,0 +1,147 @@
+package com.s16.widget;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+
+/**
+ * Key labels rendered once into bitmaps, and shared by all {@link PassCodeKeyboardView}
+ * instances in the process.
+ *
+ * A glyph is keyed by its text, size, typeface, color and shadow, so the same label drawn
+ * by two keyboards with the same style is shaped and rasterized only once. Typefaces are
+ * compared by identity, two instances of the same font are cached separately. The cache is
+ * bounded and drops the least recently used glyphs first.
+ *
+ * All methods are expected to be called from the main thread.
+ */
+final class KeyLabelGlyphs {
+
+	/** Room for the labels of a few differently styled keyboards */
+	private static final int MAX_GLYPHS = 48;
+
+	private static final LinkedHashMap<GlyphKey, Glyph> sGlyphs =
+			new LinkedHashMap<GlyphKey, Glyph>(MAX_GLYPHS, 0.75f, true);
+
+	/**
+	 * A rendered label. The bitmap is positioned relative to the point the text would be
+	 * drawn at with {@link Paint.Align#CENTER}.
+	 */
+	static final class Glyph {
+		/** The rendered label, or null if it could not be allocated */
+		final Bitmap bitmap;
+		/** Offset of the bitmap from the text origin */
+		final int left;
+		final int top;
+		/** Descent of the font at the label size */
+		final float descent;
+
+		Glyph(Bitmap bitmap, int left, int top, float descent) {
+			this.bitmap = bitmap;
+			this.left = left;
+			this.top = top;
+			this.descent = descent;
+		}
+	}
+
+	/**
+	 * Everything a rendered label depends on. Holds the typeface itself, so different fonts
+	 * with the same style never share a glyph.
+	 */
+	private static final class GlyphKey {
+		final String label;
+		final float textSize;
+		final Typeface typeface;
+		final int color;
+		final float shadowRadius;
+		final int shadowColor;
+
+		GlyphKey(String label, float textSize, Typeface typeface, int color,
+				float shadowRadius, int shadowColor) {
+			this.label = label;
+			this.textSize = textSize;
+			this.typeface = typeface;
+			this.color = color;
+			this.shadowRadius = shadowRadius;
+			this.shadowColor = shadowColor;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof GlyphKey)) return false;
+			final GlyphKey other = (GlyphKey) o;
+			return label.equals(other.label)
+					&& Float.compare(textSize, other.textSize) == 0
+					&& typeface == other.typeface
+					&& color == other.color
+					&& Float.compare(shadowRadius, other.shadowRadius) == 0
+					&& shadowColor == other.shadowColor;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = label.hashCode();
+			result = 31 * result + Float.floatToIntBits(textSize);
+			result = 31 * result + System.identityHashCode(typeface);
+			result = 31 * result + color;
+			result = 31 * result + Float.floatToIntBits(shadowRadius);
+			result = 31 * result + shadowColor;
+			return result;
+		}
+	}
+
+	private KeyLabelGlyphs() {
+	}
+
+	/**
+	 * Returns the glyph of a label, rendering it with the given paint if it is not cached.
+	 * The paint's text size, typeface, color and shadow are changed.
+	 */
+	static Glyph obtain(String label, float textSize, Typeface typeface, int color,
+			float shadowRadius, int shadowColor, Paint paint) {
+		final GlyphKey key = new GlyphKey(label, textSize, typeface, color, shadowRadius,
+				shadowColor);
+		Glyph glyph = sGlyphs.get(key);
+		if (glyph != null) {
+			return glyph;
+		}
+
+		paint.setTextSize(textSize);
+		paint.setTypeface(typeface);
+		paint.setColor(color);
+		paint.setTextAlign(Paint.Align.CENTER);
+		paint.setShadowLayer(shadowRadius, 0, 0, shadowColor);
+
+		final Paint.FontMetricsInt fm = paint.getFontMetricsInt();
+		final int pad = (int) Math.ceil(shadowRadius) + 1;
+		final int width = (int) Math.ceil(paint.measureText(label)) + pad * 2;
+		final int height = fm.bottom - fm.top + pad * 2;
+		final int originX = width / 2;
+		final int originY = -fm.top + pad;
+
+		Bitmap bitmap = null;
+		try {
+			bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			new Canvas(bitmap).drawText(label, originX, originY, paint);
+		} catch (OutOfMemoryError e) {
+			bitmap = null;
+		}
+		paint.setShadowLayer(0, 0, 0, 0);
+
+		glyph = new Glyph(bitmap, -originX, -originY, paint.descent());
+		if (bitmap != null) {
+			sGlyphs.put(key, glyph);
+			if (sGlyphs.size() > MAX_GLYPHS) {
+				final Iterator<Glyph> it = sGlyphs.values().iterator();
+				it.next();
+				it.remove();
+			}
+		}
+		return glyph;
+	}
+}
@@ -0,0 +1,129 @@
+package com.s16.widget;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Schedules key repeats and long presses for {@link PassCodeKeyboardView}.
+ *
+ * Repeats are posted against absolute {@link SystemClock#uptimeMillis()} deadlines that
+ * advance by a fixed interval, so a late repeat does not push the following ones back.
+ * When the main thread falls more than a whole interval behind, the missed repeats are
+ * skipped rather than sent in a burst. The pending key and deadlines are kept as primitives
+ * and the runnables are reused, so scheduling does not allocate.
+ *
+ * All methods are expected to be called from the main thread.
+ */
+final class KeyRepeatTimer {
+
+	interface Callback {
+		/** A repeat of the key is due. */
+		void onRepeat(int keyIndex);
+		/** The key has been held for the long-press timeout. */
+		void onLongPress(int keyIndex);
+	}
+
+	private static final int NOT_A_KEY = PassCodeKeyboard.NOT_A_KEY;
+
+	private final Handler mHandler = new Handler();
+	private final Callback mCallback;
+
+	private int mRepeatKey = NOT_A_KEY;
+	private int mRepeatInterval;
+	private long mNextRepeatTime;
+
+	private int mLongPressKey = NOT_A_KEY;
+
+	private final Runnable mRepeatRunnable = new Runnable() {
+		@Override
+		public void run() {
+			onRepeatDue();
+		}
+	};
+
+	private final Runnable mLongPressRunnable = new Runnable() {
+		@Override
+		public void run() {
+			final int keyIndex = mLongPressKey;
+			if (keyIndex == NOT_A_KEY) return;
+			mLongPressKey = NOT_A_KEY;
+			mCallback.onLongPress(keyIndex);
+		}
+	};
+
+	KeyRepeatTimer(Callback callback) {
+		mCallback = callback;
+	}
+
+	/**
+	 * Starts repeating a key.
+	 * @param startTime uptime the first repeat is counted from, usually the down event time
+	 * @param startDelay delay before the first repeat
+	 * @param interval delay between repeats
+	 */
+	void startRepeat(int keyIndex, long startTime, int startDelay, int interval) {
+		mHandler.removeCallbacks(mRepeatRunnable);
+		mRepeatKey = keyIndex;
+		mRepeatInterval = interval;
+		mNextRepeatTime = startTime + startDelay;
+		mHandler.postAtTime(mRepeatRunnable, mNextRepeatTime);
+	}
+
+	void cancelRepeat() {
+		mRepeatKey = NOT_A_KEY;
+		mHandler.removeCallbacks(mRepeatRunnable);
+	}
+
+	int getRepeatKey() {
+		return mRepeatKey;
+	}
+
+	/**
+	 * Schedules a long press of a key, replacing any pending one.
+	 * @param deadline uptime at which the long press fires
+	 */
+	void startLongPress(int keyIndex, long deadline) {
+		mHandler.removeCallbacks(mLongPressRunnable);
+		mLongPressKey = keyIndex;
+		mHandler.postAtTime(mLongPressRunnable, deadline);
+	}
+
+	void cancelLongPress() {
+		mLongPressKey = NOT_A_KEY;
+		mHandler.removeCallbacks(mLongPressRunnable);
+	}
+
+	void cancelAll() {
+		cancelRepeat();
+		cancelLongPress();
+	}
+
+	private void onRepeatDue() {
+		final int keyIndex = mRepeatKey;
+		if (keyIndex == NOT_A_KEY) return;
+		mCallback.onRepeat(keyIndex);
+		if (mRepeatKey != keyIndex) {
+			// Cancelled or restarted from the callback
+			return;
+		}
+
+		mNextRepeatTime = nextRepeatTime(mNextRepeatTime, SystemClock.uptimeMillis(),
+				mRepeatInterval);
+		mHandler.postAtTime(mRepeatRunnable, mNextRepeatTime);
+	}
+
+	/**
+	 * Returns the deadline of the repeat after the one scheduled at {@code scheduled},
+	 * when it actually ran at {@code now}. Deadlines stay on the grid of whole intervals,
+	 * and the ones already in the past are skipped.
+	 */
+	static long nextRepeatTime(long scheduled, long now, int interval) {
+		long next = scheduled + interval;
+		if (next <= now) {
+			// Skip the repeats that were missed while the main thread was busy
+			final long missed = (now - next) / interval + 1;
+			next += missed * interval;
+		}
+		return next;
+	}
+}
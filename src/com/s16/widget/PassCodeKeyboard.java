@@ -0,0 +1,554 @@
+package com.s16.widget;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Key geometry and hit-testing for {@link PassCodeKeyboardView}.
+ *
+ * This class has no dependency on the Android framework, so the layout and
+ * proximity lookup can be exercised on a plain JVM.
+ */
+public class PassCodeKeyboard {
+
+	public static final int EDGE_LEFT = 0x01;
+	public static final int EDGE_RIGHT = 0x02;
+	public static final int EDGE_TOP = 0x04;
+	public static final int EDGE_BOTTOM = 0x08;
+
+	public static final int KEYCODE_DELETE = 67;
+	public static final int KEYCODE_CLEAR = -3;
+
+	public static final int NOT_A_KEY = -1;
+	public static final int MAX_NEARBY_KEYS = 12;
+
+	public static final int GRID_WIDTH = 3;
+	public static final int GRID_HEIGHT = 4;
+	private static final int[] EMPTY_KEYS = new int[0];
+
+	/** Number of lookup cells along each side of a key. */
+	private static final int CELLS_PER_KEY = 8;
+	/** Marks a lookup cell that straddles a key boundary and needs an exact test. */
+	private static final int CELL_AMBIGUOUS = -2;
+
+	private static final String[] KEYS_LABELS = new String[] { "1", "2", "3", "4", "5", "6", "7", "8", "9", "DEL", "0", "Clear" };
+	private static final int[] KEYS_CODES = new int[] { 8, 9, 10, 11, 12, 13, 14, 15, 16, KEYCODE_DELETE, 7, KEYCODE_CLEAR };
+
+	/** Number of key widths from current touch point to search for nearest keys. */
+	private static final float SEARCH_DISTANCE = 1.4f;
+
+	public static class Key {
+		/**
+		 * All the key codes (unicode or custom code) that this key could generate, zero'th
+		 * being the most important.
+		 */
+		public int[] codes;
+
+		/** Label to display */
+		public CharSequence label;
+
+		/** Width of the key, not including the gap */
+		public int width;
+		/** Height of the key, not including the gap */
+		public int height;
+		/** The horizontal gap before this key */
+		public int gap;
+		/** X coordinate of the key in the keyboard layout */
+		public int x;
+		/** Y coordinate of the key in the keyboard layout */
+		public int y;
+		/** The current pressed state of this key */
+		public boolean pressed;
+		/** Whether this key repeats itself when held down */
+		public boolean repeatable;
+
+		/**
+		 * Flags that specify the anchoring to edges of the keyboard for detecting touch events
+		 * that are just out of the boundary of the key. This is a bit mask of
+		 * {@link PassCodeKeyboard#EDGE_LEFT}, {@link PassCodeKeyboard#EDGE_RIGHT},
+		 * {@link PassCodeKeyboard#EDGE_TOP} and {@link PassCodeKeyboard#EDGE_BOTTOM}.
+		 */
+		public int edgeFlags;
+
+		/**
+		 * Informs the key that it has been pressed, in case it needs to change its appearance or
+		 * state.
+		 * @see #onReleased(boolean)
+		 */
+		public void onPressed() {
+			pressed = true;
+		}
+
+		/**
+		 * Changes the pressed state of the key. If it is a sticky key, it will also change the
+		 * toggled state of the key if the finger was release inside.
+		 * @param inside whether the finger was released inside the key
+		 * @see #onPressed()
+		 */
+		public void onReleased(boolean inside) {
+			pressed = false;
+		}
+
+	}
+
+	/** Horizontal gap default for all rows */
+	private int mDefaultHorizontalGap;
+
+	/** Default key width */
+	private int mDefaultWidth;
+	/** Default key height */
+	private int mDefaultHeight;
+	/** Default gap between rows */
+	private int mDefaultVerticalGap;
+
+	/** Current key width, while loading the keyboard */
+	private int mKeyWidth;
+
+	/** Current key height, while loading the keyboard */
+	private int mKeyHeight;
+
+	/** Total height of the keyboard, including the padding and keys */
+	private int mTotalHeight;
+
+	/**
+	 * Total width of the keyboard, including left side gaps and keys, but not any gaps on the
+	 * right side.
+	 */
+	private int mTotalWidth;
+
+	/** List of keys in this keyboard */
+	private List<Key> mKeys;
+	private Key[] mKeyArray;
+
+	/* Key geometry used for hit-testing, one entry per key. */
+	private int[] mKeyX;
+	private int[] mKeyY;
+	private int[] mKeyWidths;
+	private int[] mKeyHeights;
+	private int[] mKeyEdgeFlags;
+	private int[][] mKeyCodes;
+
+	/* Touch lookup table, rebuilt from the key geometry as soon as it changes. */
+	private int mCellWidth;
+	private int mCellHeight;
+	private int mCellColumns;
+	private int mCellRows;
+	/** Key that covers the whole cell, NOT_A_KEY for a gap or CELL_AMBIGUOUS */
+	private int[] mCellPrimary;
+	/** Start of each cell's candidates in mCellCandidates, plus one trailing end offset */
+	private int[] mCellStart;
+	/** Keys near each cell, nearest to the cell center first */
+	private int[] mCellCandidates;
+	/** Squared search radius used to build the neighbor grid */
+	private int mProximityThreshold;
+	/** Squared radius within which a touch is attributed to a nearby key */
+	private int mKeyProximityThreshold;
+	/** Number of times the lookup table was built, for tests */
+	private int mNeighborBuildCount;
+
+	private boolean mProximityCorrectOn;
+	private final int[] mDistances = new int[MAX_NEARBY_KEYS];
+	/** Key that contributed each code in allKeys, to break distance ties by key order */
+	private final int[] mCodeKeys = new int[MAX_NEARBY_KEYS];
+
+	/**
+	 * Creates the keypad layout for the given display width. Keys are square and
+	 * fill the width until {@link #resize(int, int)} fits them to the view.
+	 * @param displayWidth width of the screen available to fit the keyboard
+	 */
+	public PassCodeKeyboard(int displayWidth) {
+		mDefaultHorizontalGap = 0;
+		mDefaultWidth = displayWidth / GRID_WIDTH;
+		mDefaultVerticalGap = 0;
+		mDefaultHeight = mDefaultWidth;
+
+		mProximityThreshold = (int) (mDefaultWidth * SEARCH_DISTANCE);
+		mProximityThreshold = mProximityThreshold * mProximityThreshold; // Square it for comparison
+
+		mKeys = new ArrayList<Key>();
+		mKeyHeight = mDefaultHeight;
+		mKeyWidth = mDefaultWidth;
+
+		createKeys();
+	}
+
+	private void createKeys() {
+		int x = 0;
+		int y = 0;
+		int column = 0;
+		mTotalWidth = 0;
+
+		for(int i=0;i<KEYS_CODES.length;i++) {
+			if (column >= GRID_WIDTH) {
+				x = 0;
+				y += mDefaultVerticalGap + mKeyHeight;
+				column = 0;
+			}
+			final Key key = new Key();
+			if (i == 0) {
+				key.edgeFlags = EDGE_LEFT | EDGE_TOP;
+			} else if (i == (GRID_WIDTH - 1)) {
+				key.edgeFlags = EDGE_RIGHT | EDGE_TOP;
+			} else if (i == ((GRID_HEIGHT * GRID_WIDTH) - GRID_WIDTH)) {
+				key.edgeFlags = EDGE_LEFT | EDGE_BOTTOM;
+			} else if (i == (KEYS_CODES.length - 1)) {
+				key.edgeFlags = EDGE_RIGHT | EDGE_BOTTOM;
+			}
+
+			key.x = x;
+			key.y = y;
+			key.width = mKeyWidth;
+			key.height = mKeyHeight;
+			key.gap = mDefaultHorizontalGap;
+			key.label = KEYS_LABELS[i];
+			key.codes = new int[] { KEYS_CODES[i] };
+			key.repeatable = (KEYS_CODES[i] == KEYCODE_DELETE);
+			column++;
+			x += key.width + key.gap;
+			mKeys.add(key);
+			if (x > mTotalWidth) {
+				mTotalWidth = x;
+			}
+		}
+		mTotalHeight = y + mDefaultHeight;
+		mKeyArray = mKeys.toArray(new Key[mKeys.size()]);
+
+		final int keyCount = mKeyArray.length;
+		mKeyX = new int[keyCount];
+		mKeyY = new int[keyCount];
+		mKeyWidths = new int[keyCount];
+		mKeyHeights = new int[keyCount];
+		mKeyEdgeFlags = new int[keyCount];
+		mKeyCodes = new int[keyCount][];
+		for (int i = 0; i < keyCount; i++) {
+			mKeyEdgeFlags[i] = mKeyArray[i].edgeFlags;
+			mKeyCodes[i] = mKeyArray[i].codes;
+		}
+		computeProximityThreshold();
+		updateKeyGeometry();
+	}
+
+	/**
+	 * Copies the key geometry used for hit-testing and rebuilds the lookup table, so the
+	 * first touch after a layout change does not have to.
+	 */
+	private void updateKeyGeometry() {
+		final Key[] keys = mKeyArray;
+		for (int i = 0; i < keys.length; i++) {
+			mKeyX[i] = keys[i].x;
+			mKeyY[i] = keys[i].y;
+			mKeyWidths[i] = keys[i].width;
+			mKeyHeights[i] = keys[i].height;
+		}
+		computeNearestNeighbors();
+	}
+
+	public final void resize(int newWidth, int newHeight) {
+		if (newWidth <= 0 || newHeight <= 0) return;
+		if (mTotalWidth <= newWidth && mTotalHeight <= newHeight) return;  // it already fits
+
+		mKeyHeight = (newHeight / GRID_HEIGHT) - mDefaultVerticalGap;
+		mKeyWidth = (newWidth / GRID_WIDTH) - mDefaultHorizontalGap;
+		mProximityThreshold = (int) (mKeyWidth * SEARCH_DISTANCE);
+		mProximityThreshold = mProximityThreshold * mProximityThreshold; // Square it for comparison
+
+		int x = 0;
+		int y = 0;
+		int column = 0;
+		for(int i=0;i<KEYS_CODES.length;i++) {
+			if (column >= GRID_WIDTH) {
+				x = 0;
+				y += mDefaultVerticalGap + mKeyHeight;
+				column = 0;
+			}
+
+			Key key = mKeys.get(i);
+			key.x = x;
+			key.y = y;
+			key.width = mKeyWidth;
+			key.height = mKeyHeight;
+
+			column++;
+			x += key.width + key.gap;
+			if (x > mTotalWidth) {
+				mTotalWidth = x;
+			}
+		}
+
+		mTotalHeight = newHeight;
+		mTotalWidth = newWidth;
+		updateKeyGeometry();
+	}
+
+	/**
+	 * Builds the touch lookup table. The keyboard is divided into cells a fraction of a
+	 * key in size. Each cell records the key that covers it entirely, if any, and the keys
+	 * close enough to be proximity candidates, sorted by distance from the cell center.
+	 */
+	public void computeNearestNeighbors() {
+		final int keyCount = mKeyArray.length;
+		final int totalWidth = Math.max(1, getMinWidth());
+		final int totalHeight = Math.max(1, getHeight());
+		mCellWidth = Math.max(1, mKeyWidth / CELLS_PER_KEY);
+		mCellHeight = Math.max(1, mKeyHeight / CELLS_PER_KEY);
+		// Round-up so we don't have any pixels outside the table
+		mCellColumns = (totalWidth + mCellWidth - 1) / mCellWidth;
+		mCellRows = (totalHeight + mCellHeight - 1) / mCellHeight;
+		final int cellCount = mCellColumns * mCellRows;
+		final int threshold = Math.max(mProximityThreshold, mKeyProximityThreshold);
+
+		final int[] primary = new int[cellCount];
+		final int[] start = new int[cellCount + 1];
+		int[] candidates = new int[cellCount * keyCount];
+		final int[] cellDistances = new int[keyCount];
+		int total = 0;
+		for (int row = 0; row < mCellRows; row++) {
+			final int top = row * mCellHeight;
+			final int bottom = Math.min(top + mCellHeight, totalHeight) - 1;
+			for (int column = 0; column < mCellColumns; column++) {
+				final int left = column * mCellWidth;
+				final int right = Math.min(left + mCellWidth, totalWidth) - 1;
+				final int cell = row * mCellColumns + column;
+
+				// Keys are axis-aligned and larger than a cell, so a cell whose corners all
+				// hit the same key (or no key) is covered by it entirely.
+				final int topLeft = findKeyInside(left, top);
+				final int topRight = findKeyInside(right, top);
+				final int bottomLeft = findKeyInside(left, bottom);
+				final int bottomRight = findKeyInside(right, bottom);
+				final boolean ambiguous = topLeft != topRight || topLeft != bottomLeft
+						|| topLeft != bottomRight;
+				primary[cell] = ambiguous ? CELL_AMBIGUOUS : topLeft;
+
+				final int centerX = (left + right) / 2;
+				final int centerY = (top + bottom) / 2;
+				int count = 0;
+				start[cell] = total;
+				for (int i = 0; i < keyCount; i++) {
+					final int keyCenterX = mKeyX[i] + mKeyWidths[i] / 2;
+					final int keyCenterY = mKeyY[i] + mKeyHeights[i] / 2;
+					// Nearest point of the cell to the key center
+					final int dx = keyCenterX - Math.max(left, Math.min(keyCenterX, right));
+					final int dy = keyCenterY - Math.max(top, Math.min(keyCenterY, bottom));
+					// Keys touching the cell must stay candidates for the exact inside test
+					if (dx * dx + dy * dy >= threshold && i != topLeft && i != topRight
+							&& i != bottomLeft && i != bottomRight
+							&& !intersects(i, left, top, right, bottom)) {
+						continue;
+					}
+					final int dist = squaredDistanceFrom(i, centerX, centerY);
+					int j = count;
+					while (j > 0 && cellDistances[j - 1] > dist) {
+						cellDistances[j] = cellDistances[j - 1];
+						candidates[total + j] = candidates[total + j - 1];
+						j--;
+					}
+					cellDistances[j] = dist;
+					candidates[total + j] = i;
+					count++;
+				}
+				total += count;
+			}
+		}
+		start[cellCount] = total;
+		if (total < candidates.length) {
+			candidates = Arrays.copyOf(candidates, total);
+		}
+
+		mCellStart = start;
+		mCellCandidates = candidates;
+		mCellPrimary = primary;
+		mNeighborBuildCount++;
+	}
+
+	/**
+	 * Returns how many times the lookup table was built.
+	 */
+	int getNeighborBuildCount() {
+		return mNeighborBuildCount;
+	}
+
+	/**
+	 * Returns the indices of the keys near the given point. This copies the candidates out
+	 * of the lookup table, so it is meant for inspection rather than the touch path.
+	 */
+	public int[] getNearestKeys(int x, int y) {
+		if (x >= 0 && x < getMinWidth() && y >= 0 && y < getHeight()) {
+			final int cell = (y / mCellHeight) * mCellColumns + (x / mCellWidth);
+			return Arrays.copyOfRange(mCellCandidates, mCellStart[cell], mCellStart[cell + 1]);
+		}
+		return EMPTY_KEYS;
+	}
+
+	/**
+	 * Finds the key under the given point.
+	 * @param x the x-coordinate of the touch, relative to the keyboard
+	 * @param y the y-coordinate of the touch, relative to the keyboard
+	 * @param allKeys if not null, filled with the codes of the keys near the point,
+	 * nearest first
+	 * @return the index of the key under the point or the closest key when proximity
+	 * correction is on, {@link #NOT_A_KEY} otherwise
+	 */
+	public int getKeyIndices(int x, int y, int[] allKeys) {
+		if (x < 0 || x >= getMinWidth() || y < 0 || y >= getHeight()) {
+			return NOT_A_KEY;
+		}
+		final int cell = (y / mCellHeight) * mCellColumns + (x / mCellWidth);
+		final int cellKey = mCellPrimary[cell];
+		if (allKeys == null && cellKey != CELL_AMBIGUOUS
+				&& (cellKey != NOT_A_KEY || !mProximityCorrectOn)) {
+			// The cell lies entirely within one key, or within a gap with nothing to correct to
+			return cellKey;
+		}
+
+		final boolean ambiguous = cellKey == CELL_AMBIGUOUS;
+		final int[] candidates = mCellCandidates;
+		final int[] distances = mDistances;
+		final int[] codeKeys = mCodeKeys;
+		final int maxCodes = allKeys == null ? 0 : Math.min(allKeys.length, distances.length);
+		int primaryIndex = ambiguous ? NOT_A_KEY : cellKey;
+		int closestKey = NOT_A_KEY;
+		int closestKeyDist = mKeyProximityThreshold + 1;
+		int codeCount = 0;
+
+		for (int c = mCellStart[cell], end = mCellStart[cell + 1]; c < end; c++) {
+			final int index = candidates[c];
+			final int[] codes = mKeyCodes[index];
+			int dist = 0;
+			final boolean isInside = ambiguous ? isInside(index, x, y) : index == cellKey;
+			if (((mProximityCorrectOn
+					&& (dist = squaredDistanceFrom(index, x, y)) < mKeyProximityThreshold)
+					|| isInside)
+					&& codes[0] > 32) {
+				if (dist < closestKeyDist) {
+					closestKeyDist = dist;
+					closestKey = index;
+				}
+
+				if (maxCodes > 0) {
+					// Candidates are already close to distance order, so this rarely shifts
+					final int nCodes = codes.length;
+					int j = codeCount;
+					while (j > 0 && (distances[j - 1] > dist
+							|| (distances[j - 1] == dist && codeKeys[j - 1] > index))) {
+						j--;
+					}
+					if (j < maxCodes) {
+						final int last = Math.min(codeCount + nCodes, maxCodes);
+						for (int k = last - 1; k >= j + nCodes; k--) {
+							allKeys[k] = allKeys[k - nCodes];
+							distances[k] = distances[k - nCodes];
+							codeKeys[k] = codeKeys[k - nCodes];
+						}
+						for (int k = 0; k < nCodes && j + k < maxCodes; k++) {
+							allKeys[j + k] = codes[k];
+							distances[j + k] = dist;
+							codeKeys[j + k] = index;
+						}
+						codeCount = last;
+					}
+				}
+			}
+
+			if (ambiguous && isInside) {
+				primaryIndex = index;
+			}
+		}
+		if (primaryIndex == NOT_A_KEY) {
+			primaryIndex = closestKey;
+		}
+		return primaryIndex;
+	}
+
+	/**
+	 * Detects if a point falls inside a key. If the key is attached to an edge, all points
+	 * between the key and the edge are considered to be inside the key.
+	 */
+	private boolean isInside(int index, int x, int y) {
+		final int edgeFlags = mKeyEdgeFlags[index];
+		final int left = mKeyX[index];
+		final int top = mKeyY[index];
+		final int right = left + mKeyWidths[index];
+		final int bottom = top + mKeyHeights[index];
+		return (x >= left || ((edgeFlags & EDGE_LEFT) > 0 && x <= right))
+				&& (x < right || ((edgeFlags & EDGE_RIGHT) > 0 && x >= left))
+				&& (y >= top || ((edgeFlags & EDGE_TOP) > 0 && y <= bottom))
+				&& (y < bottom || ((edgeFlags & EDGE_BOTTOM) > 0 && y >= top));
+	}
+
+	private int findKeyInside(int x, int y) {
+		for (int i = 0; i < mKeyArray.length; i++) {
+			if (isInside(i, x, y)) return i;
+		}
+		return NOT_A_KEY;
+	}
+
+	private boolean intersects(int index, int left, int top, int right, int bottom) {
+		return mKeyX[index] <= right && mKeyX[index] + mKeyWidths[index] > left
+				&& mKeyY[index] <= bottom && mKeyY[index] + mKeyHeights[index] > top;
+	}
+
+	/**
+	 * Returns the square of the distance between the center of a key and the given point.
+	 */
+	private int squaredDistanceFrom(int index, int x, int y) {
+		int xDist = mKeyX[index] + mKeyWidths[index] / 2 - x;
+		int yDist = mKeyY[index] + mKeyHeights[index] / 2 - y;
+		return xDist * xDist + yDist * yDist;
+	}
+
+	/**
+	 * Compute the average distance between adjacent keys (horizontally and vertically)
+	 * and square it to get the proximity threshold. We use a square here and in computing
+	 * the touch distance from a key's center to avoid taking a square root.
+	 */
+	private void computeProximityThreshold() {
+		final Key[] keys = mKeyArray;
+		int length = keys.length;
+		int dimensionSum = 0;
+		for (int i = 0; i < length; i++) {
+			Key key = keys[i];
+			dimensionSum += Math.min(key.width, key.height) + key.gap;
+		}
+		if (dimensionSum < 0 || length == 0) return;
+		mKeyProximityThreshold = (int) (dimensionSum * 1.4f / length);
+		mKeyProximityThreshold *= mKeyProximityThreshold; // Square it
+	}
+
+	public List<Key> getKeys() {
+		return mKeys;
+	}
+
+	public void setHorizontalGap(int gap) {
+		mDefaultHorizontalGap = gap;
+	}
+
+	public void setVerticalGap(int gap) {
+		mDefaultVerticalGap = gap;
+	}
+
+	public void setProximityCorrectionEnabled(boolean enabled) {
+		mProximityCorrectOn = enabled;
+	}
+
+	public boolean isProximityCorrectionEnabled() {
+		return mProximityCorrectOn;
+	}
+
+	public int getMinWidth() {
+		return mTotalWidth;
+	}
+
+	public int getHeight() {
+		return mTotalHeight;
+	}
+
+	public void setF1Key(CharSequence label, int[] codes) {
+		if (mKeys != null) {
+			mKeys.get(KEYS_CODES.length - 1).label = label;
+			mKeys.get(KEYS_CODES.length - 1).codes = codes;
+			mKeyCodes[KEYS_CODES.length - 1] = codes;
+		}
+	}
+}
@@ -6,6 +6,7 @@ import java.util.List;
 import java.util.StringTokenizer;
 
 import com.example.androidpasscode.R;
+import com.s16.widget.PassCodeKeyboard.Key;
 
 import android.content.Context;
 import android.content.res.TypedArray;
@@ -13,16 +14,16 @@ import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Paint.Align;
+import android.graphics.Picture;
 import android.graphics.PorterDuff;
 import android.graphics.Rect;
 import android.graphics.Region.Op;
 import android.graphics.Typeface;
+import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
-import android.os.Handler;
-import android.os.Message;
+import android.os.Build;
 import android.text.TextUtils;
 import android.util.AttributeSet;
-import android.util.DisplayMetrics;
 import android.util.Log;
 import android.util.TypedValue;
 import android.view.MotionEvent;
@@ -32,19 +33,30 @@ import android.view.View;
 public class PassCodeKeyboardView extends View  {
 	
 	protected static final String TAG = PassCodeKeyboardView.class.getSimpleName(); 
+	private static final boolean DEBUG = false;
 	
-	private static final int MSG_REPEAT = 3;
-	private static final int MSG_LONGPRESS = 4;
-	
-	private static final int EDGE_LEFT = 0x01;
-	private static final int EDGE_RIGHT = 0x02;
-	private static final int EDGE_TOP = 0x04;
-	private static final int EDGE_BOTTOM = 0x08;
-	private static final int KEYCODE_DELETE = 67;
-	public static final int KEYCODE_CLEAR = -3;
+	private static final int KEYCODE_DELETE = PassCodeKeyboard.KEYCODE_DELETE;
+	public static final int KEYCODE_CLEAR = PassCodeKeyboard.KEYCODE_CLEAR;
 	
 	private static final int[] KEY_DELETE = { KEYCODE_DELETE };
 	
+	private final static int[] KEY_STATE_NORMAL = {
+	};
+	
+	private final static int[] KEY_STATE_PRESSED = {
+		android.R.attr.state_pressed
+	};
+	
+	/** Keys are drawn into an offscreen bitmap which is blitted on every frame. */
+	public static final int RENDER_MODE_BUFFERED = 0;
+	/** Keys are recorded into per-key display lists, no offscreen bitmap is kept. */
+	public static final int RENDER_MODE_DISPLAY_LIST = 1;
+	
+	/** The keyboard bitmap keeps transparency, 4 bytes per pixel. */
+	public static final int BUFFER_FORMAT_ARGB_8888 = 0;
+	/** The keyboard bitmap is opaque, 2 bytes per pixel. */
+	public static final int BUFFER_FORMAT_RGB_565 = 1;
+	
 	private static final int REPEAT_INTERVAL = 50; // ~20 keys per second
 	private static final int REPEAT_START_DELAY = 400;
 	private static final int LONGPRESS_TIMEOUT = 800;
@@ -86,343 +98,49 @@ public class PassCodeKeyboardView extends View  {
         boolean onLongPress(int primaryCode);
     }
     
-    private static class Key {
-    	/** 
-         * All the key codes (unicode or custom code) that this key could generate, zero'th 
-         * being the most important.
-         */
-        public int[] codes;
-        
-        /** Label to display */
-        public CharSequence label;
-        
-        /** Icon to display instead of a label. Icon takes precedence over a label */
-        public Drawable icon;
-        /** Width of the key, not including the gap */
-        public int width;
-        /** Height of the key, not including the gap */
-        public int height;
-        /** The horizontal gap before this key */
-        public int gap;
-        /** X coordinate of the key in the keyboard layout */
-        public int x;
-        /** Y coordinate of the key in the keyboard layout */
-        public int y;
-        /** The current pressed state of this key */
-        public boolean pressed;
-        /** Whether this key repeats itself when held down */
-		public boolean repeatable;
-		
-        /** 
-		 * Flags that specify the anchoring to edges of the keyboard for detecting touch events
-		 * that are just out of the boundary of the key. This is a bit mask of 
-		 * {@link Keyboard#EDGE_LEFT}, {@link Keyboard#EDGE_RIGHT}, {@link Keyboard#EDGE_TOP} and
-		 * {@link Keyboard#EDGE_BOTTOM}.
-		 */
-		public int edgeFlags;
-		
-		private final static int[] KEY_STATE_NORMAL = {
-		};
-		
-		private final static int[] KEY_STATE_PRESSED = {
-			android.R.attr.state_pressed
-		};
-		
-		/**
-		 * Informs the key that it has been pressed, in case it needs to change its appearance or
-		 * state.
-		 * @see #onReleased(boolean)
-		 */
-		public void onPressed() {
-			pressed = true;
-		}
-		
-		/**
-		 * Changes the pressed state of the key. If it is a sticky key, it will also change the
-		 * toggled state of the key if the finger was release inside.
-		 * @param inside whether the finger was released inside the key
-		 * @see #onPressed()
-		 */
-		public void onReleased(boolean inside) {
-			pressed = false;
-		}
-		
-		/**
-		 * Detects if a point falls inside this key.
-		 * @param x the x-coordinate of the point 
-		 * @param y the y-coordinate of the point
-		 * @return whether or not the point falls inside the key. If the key is attached to an edge,
-		 * it will assume that all points between the key and the edge are considered to be inside
-		 * the key.
-		 */
-		public boolean isInside(int x, int y) {
-			boolean leftEdge = (edgeFlags & EDGE_LEFT) > 0;
-			boolean rightEdge = (edgeFlags & EDGE_RIGHT) > 0;
-			boolean topEdge = (edgeFlags & EDGE_TOP) > 0;
-			boolean bottomEdge = (edgeFlags & EDGE_BOTTOM) > 0;
-			if ((x >= this.x || (leftEdge && x <= this.x + this.width)) 
-					&& (x < this.x + this.width || (rightEdge && x >= this.x)) 
-					&& (y >= this.y || (topEdge && y <= this.y + this.height))
-					&& (y < this.y + this.height || (bottomEdge && y >= this.y))) {
-				return true;
-			} else {
-				return false;
-			}
-		}
-		
-		/**
-		 * Returns the square of the distance between the center of the key and the given point.
-		 * @param x the x-coordinate of the point
-		 * @param y the y-coordinate of the point
-		 * @return the square of the distance of the point from the center of the key
-		 */
-		public int squaredDistanceFrom(int x, int y) {
-			int xDist = this.x + width / 2 - x;
-			int yDist = this.y + height / 2 - y;
-			return xDist * xDist + yDist * yDist;
+    /**
+     * Touch state of a single pointer. Every pointer down on the keyboard presses, repeats
+     * and long-presses its own key, so a second finger can land before the first one lifts.
+     */
+    private final class Pointer implements KeyRepeatTimer.Callback {
+    	int id = INVALID_POINTER_ID;
+    	/** The key drawn as pressed by this pointer */
+    	int pressedKey = NOT_A_KEY;
+    	int currentKey = NOT_A_KEY;
+    	int repeatKey = NOT_A_KEY;
+    	int lastKey;
+    	long downTime;
+    	long lastKeyTime;
+    	long currentKeyTime;
+    	long lastMoveTime;
+    	int lastCodeX;
+    	int lastCodeY;
+    	int lastX;
+    	int lastY;
+    	/** Key hit at lastX, lastY, reused while batched samples stay on the same point */
+    	int lastHitKey = NOT_A_KEY;
+    	boolean abortKey;
+    	/** The key was already sent on touch down, nothing is sent on release */
+    	boolean committed;
+    	final KeyRepeatTimer timer = new KeyRepeatTimer(this);
+    	/** Codes around the repeating key, resolved once when the repeat starts */
+    	final int[] repeatKeyCodes = new int[PassCodeKeyboard.MAX_NEARBY_KEYS];
+    	
+		@Override
+		public void onRepeat(int keyIndex) {
+			repeatKey(this, keyIndex);
 		}
 		
-		/**
-		 * Returns the drawable state for the key, based on the current state and type of the key.
-		 * @return the drawable state of the key.
-		 * @see android.graphics.drawable.StateListDrawable#setState(int[])
-		 */
-		public int[] getCurrentDrawableState() {
-			int[] states = KEY_STATE_NORMAL;
-			if (pressed) {
-				states = KEY_STATE_PRESSED;
-			}
-			return states;
-		}
-    }
-    
-    private class Keyboard {
-    	
-    	private final String[] KEYS_LABELS = new String[] { "1", "2", "3", "4", "5", "6", "7", "8", "9", "DEL", "0", "Clear" }; 
-    	private final int[] KEYS_CODES = new int[] { 8, 9, 10, 11, 12, 13, 14, 15, 16, KEYCODE_DELETE, 7, KEYCODE_CLEAR };
-    	
-    	/** Number of key widths from current touch point to search for nearest keys. */
-    	private float SEARCH_DISTANCE = 1.4f;
-    	
-    	/** Horizontal gap default for all rows */
-    	private int mDefaultHorizontalGap;
-    	
-    	/** Default key width */
-    	private int mDefaultWidth;
-    	/** Default key height */
-    	private int mDefaultHeight;
-    	/** Default gap between rows */
-    	private int mDefaultVerticalGap;
-    	/** Width of the screen available to fit the keyboard */
-    	private int mDisplayWidth;
-    	
-    	/** Current key width, while loading the keyboard */
-    	private int mKeyWidth;
-    	
-    	/** Current key height, while loading the keyboard */
-    	private int mKeyHeight;
-    	
-    	/** Total height of the keyboard, including the padding and keys */
-    	private int mTotalHeight;
-    	
-    	/** 
-    	 * Total width of the keyboard, including left side gaps and keys, but not any gaps on the
-    	 * right side.
-    	 */
-    	private int mTotalWidth;
-    	
-    	/** List of keys in this keyboard */
-    	private List<Key> mKeys;
-    	
-    	private static final int GRID_WIDTH = 3;
-    	private static final int GRID_HEIGHT = 4;
-    	private static final int GRID_SIZE = GRID_WIDTH * GRID_HEIGHT;
-    	private int mCellWidth;
-    	private int mCellHeight;
-    	private int[][] mGridNeighbors;
-    	private int mProximityThreshold;
-    	
-    	public Keyboard(Context context) {
-    		DisplayMetrics dm = context.getResources().getDisplayMetrics();
-    		mDisplayWidth = dm.widthPixels;
-    		mDefaultHorizontalGap = 0;
-    		mDefaultWidth = mDisplayWidth / GRID_WIDTH;
-    		mDefaultVerticalGap = 0;
-    		mDefaultHeight = mDefaultWidth;
-    		
-    		mProximityThreshold = (int) (mDefaultWidth * SEARCH_DISTANCE);
-    		mProximityThreshold = mProximityThreshold * mProximityThreshold; // Square it for comparison
-    		
-    		mKeys = new ArrayList<Key>();
-    		mKeyHeight = mDefaultHeight;
-    		mKeyWidth = mDefaultWidth;
-    		
-    		createKeys();
-    	}
-    	
-    	private void createKeys() {
-    		int x = 0;
-    		int y = 0;
-    		int column = 0;
-    		mTotalWidth = 0;
-    		
-    		for(int i=0;i<KEYS_CODES.length;i++) {
-    			if (column >= GRID_WIDTH) {
-    				x = 0;
-    				y += mDefaultVerticalGap + mKeyHeight;
-    				column = 0;
-    			}
-    			final Key key = new Key();
-    			if (i == 0) {
-    				key.edgeFlags = EDGE_LEFT | EDGE_TOP;
-    			} else if (i == (GRID_WIDTH - 1)) {
-    				key.edgeFlags = EDGE_RIGHT | EDGE_TOP;
-    			} else if (i == ((GRID_HEIGHT * GRID_WIDTH) - GRID_WIDTH)) {
-    				key.edgeFlags = EDGE_LEFT | EDGE_BOTTOM;
-    			} else if (i == (KEYS_CODES.length - 1)) {
-    				key.edgeFlags = EDGE_RIGHT | EDGE_BOTTOM;
-    			}
-    			
-    			key.x = x;
-    			key.y = y;
-    			key.width = mKeyWidth;
-    			key.height = mKeyHeight;
-    			key.gap = mDefaultHorizontalGap;
-    			key.label = KEYS_LABELS[i];
-    			key.codes = new int[] { KEYS_CODES[i] };
-    			key.repeatable = (KEYS_CODES[i] == KEYCODE_DELETE);
-    			column++;
-    			x += key.width + key.gap;
-    			mKeys.add(key);
-    			if (x > mTotalWidth) {
-    				mTotalWidth = x;
-    			}
-    		}
-    		mTotalHeight = y + mDefaultHeight; 
-    	}
-    	
-    	final void resize(int newWidth, int newHeight) {
-    		if (newWidth <= 0 || newHeight <= 0) return;
-    		if (mTotalWidth <= newWidth && mTotalHeight <= newHeight) return;  // it already fits
-    		
-    		mKeyHeight = (newHeight / GRID_HEIGHT) - mDefaultVerticalGap;
-    		mKeyWidth = (newWidth / GRID_WIDTH) - mDefaultHorizontalGap;
-    		mProximityThreshold = (int) (mKeyWidth * SEARCH_DISTANCE);
-    		mProximityThreshold = mProximityThreshold * mProximityThreshold; // Square it for comparison
-    		
-    		int x = 0;
-    		int y = 0;
-    		int column = 0;
-    		for(int i=0;i<KEYS_CODES.length;i++) {
-    			if (column >= GRID_WIDTH) {
-    				x = 0;
-    				y += mDefaultVerticalGap + mKeyHeight;
-    				column = 0;
-    			}
-    			
-    			Key key = mKeys.get(i);
-    			key.x = x;
-    			key.y = y;
-    			key.width = mKeyWidth;
-    			key.height = mKeyHeight;
-    			
-    			column++;
-    			x += key.width + key.gap;
-    			if (x > mTotalWidth) {
-    				mTotalWidth = x;
-    			}
-    		}
-    		
-    		mTotalHeight = newHeight;
-    		mTotalWidth = newWidth;
-    		mGridNeighbors = null;
-    	}
-    	
-    	private void computeNearestNeighbors() {
-    		// Round-up so we don't have any pixels outside the grid
-    		mCellWidth = (getMinWidth() + GRID_WIDTH - 1) / GRID_WIDTH;
-    		mCellHeight = (getHeight() + GRID_HEIGHT - 1) / GRID_HEIGHT;
-    		mGridNeighbors = new int[GRID_SIZE][];
-    		int[] indices = new int[mKeys.size()];
-    		final int gridWidth = GRID_WIDTH * mCellWidth;
-    		final int gridHeight = GRID_HEIGHT * mCellHeight;
-    		for (int x = 0; x < gridWidth; x += mCellWidth) {
-    			for (int y = 0; y < gridHeight; y += mCellHeight) {
-    				int count = 0;
-    				for (int i = 0; i < mKeys.size(); i++) {
-    					final Key key = mKeys.get(i);
-    					if (key.squaredDistanceFrom(x, y) < mProximityThreshold ||
-    							key.squaredDistanceFrom(x + mCellWidth - 1, y) < mProximityThreshold ||
-    							key.squaredDistanceFrom(x + mCellWidth - 1, y + mCellHeight - 1) 
-    								< mProximityThreshold ||
-    							key.squaredDistanceFrom(x, y + mCellHeight - 1) < mProximityThreshold) {
-    						indices[count++] = i;
-    					}
-    				}
-    				int [] cell = new int[count];
-    				System.arraycopy(indices, 0, cell, 0, count);
-    				mGridNeighbors[(y / mCellHeight) * GRID_WIDTH + (x / mCellWidth)] = cell;
-    			}
-    		}
-    	}
-    	
-    	public int[] getNearestKeys(int x, int y) {
-    		if (mGridNeighbors == null) computeNearestNeighbors();
-    		if (x >= 0 && x < getMinWidth() && y >= 0 && y < getHeight()) {
-    			int index = (y / mCellHeight) * GRID_WIDTH + (x / mCellWidth);
-    			if (index < GRID_SIZE) {
-    				return mGridNeighbors[index];
-    			}
-    		}
-    		return new int[0];
-    	}
-    	
-    	public List<Key> getKeys() {
-    		return mKeys;
-    	}
-    	
-    	void setHorizontalGap(int gap) {
-    		mDefaultHorizontalGap = gap;
-    	}
-    	
-    	protected void setVerticalGap(int gap) {
-    		mDefaultVerticalGap = gap;
-    	}
-    	
-    	public int getMinWidth() {
-    		return mTotalWidth;
-    	}
-    	
-    	public int getHeight() {
-    		return mTotalHeight;
-    	}
-    	
-    	private void setF1Key(CharSequence label, int[] codes) {
-    		if (mKeys != null) {
-    			mKeys.get(KEYS_CODES.length - 1).label = label;
-    			mKeys.get(KEYS_CODES.length - 1).codes = codes;
-    		}
-    	}
-    }
-    
-    private Handler mHandler = new Handler() {
 		@Override
-		public void handleMessage(Message msg) {
-			switch (msg.what) {
-				case MSG_REPEAT:
-					if (repeatKey()) {
-						Message repeat = Message.obtain(this, MSG_REPEAT);
-						sendMessageDelayed(repeat, REPEAT_INTERVAL);                        
-					}
-					break;
-				case MSG_LONGPRESS:
-					onLongPress((MotionEvent) msg.obj);
-					break;
-			}
+		public void onLongPress(int keyIndex) {
+			PassCodeKeyboardView.this.onLongPress(this, keyIndex);
 		}
-	};
+	}
+    
+    private static final int INVALID_POINTER_ID = -1;
+    private static final int MAX_POINTERS = 10;
     
-    private static final int NOT_A_KEY = -1;
+    private static final int NOT_A_KEY = PassCodeKeyboard.NOT_A_KEY;
     
     private int mLabelTextSize;
     private int mKeyTextSize;
@@ -439,24 +157,19 @@ public class PassCodeKeyboardView extends View  {
     private int mVerticalGap;
     
     private int mVerticalCorrection;
-    private int mProximityThreshold;
     
-    private static int MAX_NEARBY_KEYS = 12;
-	private int[] mDistances = new int[MAX_NEARBY_KEYS];
 	
-	private int mCurrentKeyIndex = NOT_A_KEY;
-	private int mCurrentKey = NOT_A_KEY;
-	private int mRepeatKeyIndex = NOT_A_KEY;
-	private int mLastKey;
-	private long mDownTime;
-	private long mLastKeyTime;
-	private long mCurrentKeyTime;
-	private long mLastMoveTime;
-	private int mLastCodeX;
-	private int mLastCodeY;
-	private int mLastX;
-	private int mLastY;
-	private boolean mAbortKey;
+	/** Pointers currently down, slots are created on first use and reused afterwards */
+	private final Pointer[] mPointers = new Pointer[MAX_POINTERS];
+	/** Number of pointers pressing each key, a key is drawn released when it drops to 0 */
+	private int[] mKeyPressCount;
+	
+	/** Codes of the keys around the released touch, reused for every key sent */
+	private final int[] mKeyCodes = new int[PassCodeKeyboard.MAX_NEARBY_KEYS];
+	/** Whether {@link #mKeyCodes} already holds the codes for mKeyCodesX, mKeyCodesY */
+	private boolean mKeyCodesValid;
+	private int mKeyCodesX;
+	private int mKeyCodesY;
 	
 	// For multi-tap
 	private int mLastSentIndex;
@@ -465,19 +178,38 @@ public class PassCodeKeyboardView extends View  {
 	private boolean mInMultiTap;
 	private static final int MULTITAP_INTERVAL = 800; // milliseconds
 
-    private Rect mClipRegion = new Rect(0, 0, 0, 0);
     /** Whether the keyboard bitmap needs to be redrawn before it's blitted. **/
     private boolean mDrawPending;
-    /** The dirty region in the keyboard bitmap */
-    private Rect mDirtyRect = new Rect();
+    /** Whether the whole keyboard bitmap, including the gaps, needs to be cleared */
+    private boolean mDrawAll;
+    /** Keys invalidated since the last frame, flushed together from {@link #onDraw} */
+    private boolean[] mDirtyKeys;
     /** The keyboard bitmap for faster updates */
     private Bitmap mBuffer;
     /** The canvas for the above mutable keyboard bitmap */
     private Canvas mCanvas;
+    /** A replaced keyboard bitmap, given back to the pool once a frame was drawn without it */
+    private Bitmap mRetiredBuffer;
+    private int mBufferFormat = BUFFER_FORMAT_ARGB_8888;
+    private boolean mCommitOnDown;
+    /** Color the keyboard bitmap is cleared to, unused for {@link #BUFFER_FORMAT_ARGB_8888} */
+    private int mBufferFillColor;
+    
+    /** One recorded display list per key, used in {@link #RENDER_MODE_DISPLAY_LIST} */
+    private Picture[] mKeyPictures;
+    private int mRenderMode = RENDER_MODE_BUFFERED;
     
-    private Key mInvalidatedKey;
-    private Keyboard mKeyboard;
+    private PassCodeKeyboard mKeyboard;
     private Drawable mKeyBackground;
+    /** Pre-rasterized backgrounds for the current key size, shared with other keyboards */
+    private KeyBackgroundStamps mKeyStamps;
+    
+    /** Label glyph of each key, positioned by {@link #layoutLabels()} */
+    private KeyLabelGlyphs.Glyph[] mLabelGlyphs;
+    /** Position of each label glyph relative to the top-left corner of its key */
+    private int[] mLabelX;
+    private int[] mLabelY;
+    private boolean mLabelsValid;
     
     private CharSequence mF1KeyLabel;
     private int[] mF1KeyCodes;
@@ -485,6 +217,7 @@ public class PassCodeKeyboardView extends View  {
     private Key[] mKeys;
     
     private List<OnKeyboardActionListener> mKeyboardActionListener;
+    private InputLatencyProbe mLatencyProbe;
     
     public PassCodeKeyboardView(Context context, AttributeSet attrs) {
     	this(context, attrs, R.attr.keyboardViewStyle);
@@ -506,6 +239,9 @@ public class PassCodeKeyboardView extends View  {
         mShadowColor = a.getColor(R.styleable.PassCodeKeyboardView_shadowColor, 0);
         mShadowRadius = a.getFloat(R.styleable.PassCodeKeyboardView_shadowRadius, 0f);
         mF1KeyLabel = a.getText(R.styleable.PassCodeKeyboardView_f1KeyLabel);
+        mRenderMode = a.getInt(R.styleable.PassCodeKeyboardView_renderMode, RENDER_MODE_BUFFERED);
+        mBufferFormat = a.getInt(R.styleable.PassCodeKeyboardView_bufferFormat, BUFFER_FORMAT_ARGB_8888);
+        mCommitOnDown = a.getBoolean(R.styleable.PassCodeKeyboardView_commitOnDown, false);
         
         TypedValue f1CodesValue = new TypedValue();
         a.getValue(R.styleable.PassCodeKeyboardView_f1KeyCodes, f1CodesValue);
@@ -559,21 +295,23 @@ public class PassCodeKeyboardView extends View  {
     }
     
     private void createKeyboard() {
-    	mHandler.removeMessages(MSG_REPEAT);
-		mHandler.removeMessages(MSG_LONGPRESS);
+    	resetPointers();
 		
-    	mKeyboard = new Keyboard(getContext());
+    	mKeyboard = new PassCodeKeyboard(getResources().getDisplayMetrics().widthPixels);
     	mKeyboard.setF1Key(mF1KeyLabel, mF1KeyCodes);
     	mKeyboard.setHorizontalGap(mHorizontalGap);
     	mKeyboard.setVerticalGap(mVerticalGap);
+    	mKeyboard.setProximityCorrectionEnabled(mProximityCorrectOn);
     	List<Key> keys = mKeyboard.getKeys();
 		mKeys = keys.toArray(new Key[keys.size()]);
+		mDirtyKeys = new boolean[mKeys.length];
+		mKeyPressCount = new int[mKeys.length];
+		mLabelsValid = false;
 		requestLayout();
 		// Release buffer, just in case the new keyboard has a different size. 
 		// It will be reallocated on the next draw.
-		mBuffer = null;
+		releaseBuffer();
 		invalidateAllKeys();
-		computeProximityThreshold();
     }
     
     public void addOnKeyboardActionListener(OnKeyboardActionListener listener) {
@@ -592,6 +330,9 @@ public class PassCodeKeyboardView extends View  {
 	 */
 	public void setProximityCorrectionEnabled(boolean enabled) {
 		mProximityCorrectOn = enabled;
+		if (mKeyboard != null) {
+			mKeyboard.setProximityCorrectionEnabled(enabled);
+		}
 	}
 	/**
 	 * Returns true if proximity correction is enabled.
@@ -600,6 +341,65 @@ public class PassCodeKeyboardView extends View  {
 		return mProximityCorrectOn;
 	}
     
+	/**
+	 * Selects how the keys are rendered.
+	 * @param renderMode {@link #RENDER_MODE_BUFFERED} or {@link #RENDER_MODE_DISPLAY_LIST}
+	 */
+	public void setRenderMode(int renderMode) {
+		if (mRenderMode == renderMode) return;
+		mRenderMode = renderMode;
+		releaseDrawingCache();
+		invalidateAllKeys();
+	}
+	
+	public int getRenderMode() {
+		return mRenderMode;
+	}
+	
+	/**
+	 * Selects the pixel format of the keyboard bitmap used by {@link #RENDER_MODE_BUFFERED}.
+	 * {@link #BUFFER_FORMAT_RGB_565} halves its memory but is opaque, so it should only be
+	 * used when the key background is opaque. The gaps between keys are then filled with
+	 * the view's background color if it is a plain color, or black.
+	 * @param format {@link #BUFFER_FORMAT_ARGB_8888} or {@link #BUFFER_FORMAT_RGB_565}
+	 */
+	public void setBufferFormat(int format) {
+		if (mBufferFormat == format) return;
+		mBufferFormat = format;
+		releaseBuffer();
+		invalidateAllKeys();
+	}
+	
+	public int getBufferFormat() {
+		return mBufferFormat;
+	}
+	
+	/**
+	 * Sends keys as soon as they are touched rather than when they are released, which
+	 * takes the finger contact time out of the latency of every key. A key sent this way
+	 * can no longer be cancelled by sliding off it. Repeatable keys such as delete always
+	 * send on touch down and keep repeating while held.
+	 */
+	public void setCommitOnDown(boolean commitOnDown) {
+		mCommitOnDown = commitOnDown;
+	}
+	
+	public boolean isCommitOnDown() {
+		return mCommitOnDown;
+	}
+	
+	/**
+	 * Installs a probe that times each keystroke from the touch event until it is drawn,
+	 * or removes it when null. No timing is done while no probe is installed.
+	 */
+	public void setLatencyProbe(InputLatencyProbe probe) {
+		mLatencyProbe = probe;
+	}
+	
+	public InputLatencyProbe getLatencyProbe() {
+		return mLatencyProbe;
+	}
+	
 	public void setF1Key(CharSequence label, int[] codes) {
 		mF1KeyLabel = label;
 		if (!TextUtils.isEmpty(mF1KeyLabel) && (codes == null || codes.length == 0)) {
@@ -613,6 +413,7 @@ public class PassCodeKeyboardView extends View  {
 		if (mKeys != null) {
 			mKeys[mKeys.length - 1].label = mF1KeyLabel;
 			mKeys[mKeys.length - 1].codes = mF1KeyCodes;
+			mLabelsValid = false;
 			invalidateAllKeys();
 		} 
 	}
@@ -638,106 +439,231 @@ public class PassCodeKeyboardView extends View  {
         	mKeyboard.resize(w - (getPaddingLeft() + getPaddingRight()), h - (getPaddingTop() + getPaddingBottom()));
         }
     	// Release the buffer, if any and it will be reallocated on the next draw
-        mBuffer = null;
+        releaseBuffer();
+        mLabelsValid = false;
+        markAllKeysDirty();
     }
     
     @Override
     public void onDraw(Canvas canvas) {
     	super.onDraw(canvas);
+    	if (mRenderMode == RENDER_MODE_DISPLAY_LIST) {
+    		onDisplayListDraw(canvas);
+    		poolRetiredBuffer();
+    		return;
+    	}
 		if (mDrawPending || mBuffer == null) {
 			onBufferDraw();
 		}
 		canvas.drawBitmap(mBuffer, 0, 0, null);
+		poolRetiredBuffer();
+    }
+    
+    /**
+     * Draws the keys straight into the view's display list. Each key is recorded into
+     * its own {@link Picture}, so a press or release only re-records that key.
+     */
+    private void onDisplayListDraw(Canvas canvas) {
+    	final Key[] keys = mKeys;
+    	final int keyCount = keys.length;
+    	final boolean[] dirtyKeys = mDirtyKeys;
+    	if (mKeyPictures == null || mKeyPictures.length != keyCount) {
+    		mKeyPictures = new Picture[keyCount];
+    		for (int i = 0; i < keyCount; i++) {
+    			mKeyPictures[i] = new Picture();
+    		}
+    		markAllKeysDirty();
+    	}
+    	// Hardware canvases only play back pictures from API 23 onwards.
+    	final boolean usePictures = !canvas.isHardwareAccelerated()
+    			|| Build.VERSION.SDK_INT >= 23;
+    	final int kbdPaddingLeft = getPaddingLeft();
+		final int kbdPaddingTop = getPaddingTop();
+    	for (int i = 0; i < keyCount; i++) {
+    		final Key key = keys[i];
+    		canvas.translate(key.x + kbdPaddingLeft, key.y + kbdPaddingTop);
+    		if (usePictures) {
+    			final Picture picture = mKeyPictures[i];
+    			if (dirtyKeys[i]) {
+    				drawKey(picture.beginRecording(key.width, key.height), i);
+    				picture.endRecording();
+    			}
+    			canvas.drawPicture(picture);
+    		} else {
+    			drawKey(canvas, i);
+    		}
+    		canvas.translate(-key.x - kbdPaddingLeft, -key.y - kbdPaddingTop);
+    		dirtyKeys[i] = false;
+    	}
+    	mDrawAll = false;
+    	mDrawPending = false;
+    }
+    
+    /**
+     * Computes the label glyph and its position for every key. Runs once per layout or
+     * label change, so drawing a key never measures or shapes text.
+     */
+    private void layoutLabels() {
+    	final Key[] keys = mKeys;
+    	final int keyCount = keys.length;
+    	if (mLabelGlyphs == null || mLabelGlyphs.length != keyCount) {
+    		mLabelGlyphs = new KeyLabelGlyphs.Glyph[keyCount];
+    		mLabelX = new int[keyCount];
+    		mLabelY = new int[keyCount];
+    	}
+    	final Rect padding = mPadding;
+    	for (int i = 0; i < keyCount; i++) {
+    		final Key key = keys[i];
+    		if (key.label == null) {
+    			mLabelGlyphs[i] = null;
+    			continue;
+    		}
+    		final String label = key.label.toString();
+    		// For characters, use large font. For labels like "Done", use small font.
+    		final boolean small = label.length() > 1 && key.codes.length < 2;
+    		final int textSize = small ? mLabelTextSize : mKeyTextSize;
+    		final KeyLabelGlyphs.Glyph glyph = KeyLabelGlyphs.obtain(label, textSize,
+    				small ? Typeface.DEFAULT_BOLD : Typeface.DEFAULT, mKeyTextColor,
+    				mShadowRadius, mShadowColor, mPaint);
+    		final int x = (key.width - padding.left - padding.right) / 2 + padding.left;
+    		final float y = (key.height - padding.top - padding.bottom) / 2
+    				+ (textSize - glyph.descent) / 2 + padding.top;
+    		mLabelGlyphs[i] = glyph;
+    		mLabelX[i] = x + glyph.left;
+    		mLabelY[i] = Math.round(y) + glyph.top;
+    	}
+    	mLabelsValid = true;
+    }
+    
+    /**
+     * Draws a single key with its top-left corner at the canvas origin.
+     */
+    private void drawKey(Canvas canvas, int index) {
+    	final Key key = mKeys[index];
+		final Drawable keyBackground = mKeyBackground;
+		
+		KeyBackgroundStamps stamps = mKeyStamps;
+		if (stamps == null || !stamps.matches(keyBackground, key.width, key.height)) {
+			stamps = mKeyStamps = KeyBackgroundStamps.obtain(keyBackground, key.width, key.height);
+		}
+		final Bitmap stamp = stamps != null ? stamps.get(key.pressed
+				? KeyBackgroundStamps.STATE_PRESSED : KeyBackgroundStamps.STATE_NORMAL, keyBackground) : null;
+		if (stamp != null) {
+			canvas.drawBitmap(stamp, 0, 0, null);
+		} else {
+			keyBackground.setState(getKeyDrawableState(key));
+			final Rect bounds = keyBackground.getBounds();
+			if (key.width != bounds.right || 
+					key.height != bounds.bottom) {
+				keyBackground.setBounds(0, 0, key.width, key.height);
+			}
+			keyBackground.draw(canvas);
+		}
+		
+		if (key.label == null) {
+			return;
+		}
+		if (!mLabelsValid) {
+			layoutLabels();
+		}
+		final KeyLabelGlyphs.Glyph glyph = mLabelGlyphs[index];
+		if (glyph.bitmap != null) {
+			canvas.drawBitmap(glyph.bitmap, mLabelX[index], mLabelY[index], null);
+		} else {
+			drawLabelText(canvas, key, key.label.toString());
+		}
+    }
+    
+    /**
+     * Draws a label as text, used when its glyph could not be rendered into a bitmap.
+     */
+    private void drawLabelText(Canvas canvas, Key key, String label) {
+    	final Paint paint = mPaint;
+    	final Rect padding = mPadding;
+		paint.setAlpha(255);
+		paint.setColor(mKeyTextColor);
+		// For characters, use large font. For labels like "Done", use small font.
+		if (label.length() > 1 && key.codes.length < 2) {
+			paint.setTextSize(mLabelTextSize);
+			paint.setTypeface(Typeface.DEFAULT_BOLD);
+		} else {
+			paint.setTextSize(mKeyTextSize);
+			paint.setTypeface(Typeface.DEFAULT);
+		}
+		// Draw a drop shadow for the text
+		paint.setShadowLayer(mShadowRadius, 0, 0, mShadowColor);
+		// Draw the text
+		canvas.drawText(label,
+			(key.width - padding.left - padding.right) / 2
+					+ padding.left,
+			(key.height - padding.top - padding.bottom) / 2
+					+ (paint.getTextSize() - paint.descent()) / 2 + padding.top,
+			paint);
+		// Turn off drop shadow
+		paint.setShadowLayer(0, 0, 0, 0);
     }
     
+    /**
+     * Redraws the dirty keys into the keyboard bitmap. Invalidations collected since the
+     * last frame are flushed here together, each key clipped to its own bounds.
+     */
     private void onBufferDraw() {
     	if (mBuffer == null) {
-			mBuffer = Bitmap.createBitmap(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+    		// A pooled bitmap keeps its old content, the full redraw below clears it
+			if (mBufferFormat == BUFFER_FORMAT_RGB_565) {
+				mBuffer = BitmapPool.acquire(getWidth(), getHeight(), Bitmap.Config.RGB_565);
+				final Drawable background = getBackground();
+				mBufferFillColor = background instanceof ColorDrawable
+						? ((ColorDrawable) background).getColor() | 0xFF000000 : 0xFF000000;
+			} else {
+				mBuffer = BitmapPool.acquire(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+			}
 			mCanvas = new Canvas(mBuffer);
-			invalidateAllKeys();
+			markAllKeysDirty();
 		}
 		final Canvas canvas = mCanvas;
-		canvas.clipRect(mDirtyRect, Op.REPLACE);
-		
-		final Paint paint = mPaint;
-		final Drawable keyBackground = mKeyBackground;
-		final Rect clipRegion = mClipRegion;
-		final Rect padding = mPadding;
 		final int kbdPaddingLeft = getPaddingLeft();
 		final int kbdPaddingTop = getPaddingTop();
 		final Key[] keys = mKeys;
-		final Key invalidKey = mInvalidatedKey;
-		paint.setAlpha(255);
-		paint.setColor(mKeyTextColor);
-		boolean drawSingleKey = false;
-		if (invalidKey != null && canvas.getClipBounds(clipRegion)) {
-		  // Is clipRegion completely contained within the invalidated key?
-		  if (invalidKey.x + kbdPaddingLeft - 1 <= clipRegion.left &&
-				  invalidKey.y + kbdPaddingTop - 1 <= clipRegion.top &&
-				  invalidKey.x + invalidKey.width + kbdPaddingLeft + 1 >= clipRegion.right &&
-				  invalidKey.y + invalidKey.height + kbdPaddingTop + 1 >= clipRegion.bottom) {
-			  drawSingleKey = true;
-		  }
+		final boolean[] dirtyKeys = mDirtyKeys;
+		if (mDrawAll) {
+			canvas.clipRect(0, 0, getWidth(), getHeight(), Op.REPLACE);
+			clearBuffer(canvas);
 		}
-		canvas.drawColor(0x00000000, PorterDuff.Mode.CLEAR);
 		final int keyCount = keys.length;
 		for (int i = 0; i < keyCount; i++) {
-			final Key key = keys[i];
-			if (drawSingleKey && invalidKey != key) {
+			if (!dirtyKeys[i]) {
 				continue;
 			}
-			int[] drawableState = key.getCurrentDrawableState();
-			keyBackground.setState(drawableState);
-			
-			String label = key.label == null? null : key.label.toString();
-			
-			final Rect bounds = keyBackground.getBounds();
-			if (key.width != bounds.right || 
-					key.height != bounds.bottom) {
-				keyBackground.setBounds(0, 0, key.width, key.height);
-			}
+			final Key key = keys[i];
 			canvas.translate(key.x + kbdPaddingLeft, key.y + kbdPaddingTop);
-			keyBackground.draw(canvas);
-			
-			if (label != null) {
-				// For characters, use large font. For labels like "Done", use small font.
-				if (label.length() > 1 && key.codes.length < 2) {
-					paint.setTextSize(mLabelTextSize);
-					paint.setTypeface(Typeface.DEFAULT_BOLD);
-				} else {
-					paint.setTextSize(mKeyTextSize);
-					paint.setTypeface(Typeface.DEFAULT);
-				}
-				// Draw a drop shadow for the text
-				paint.setShadowLayer(mShadowRadius, 0, 0, mShadowColor);
-				// Draw the text
-				canvas.drawText(label,
-					(key.width - padding.left - padding.right) / 2
-							+ padding.left,
-					(key.height - padding.top - padding.bottom) / 2
-							+ (paint.getTextSize() - paint.descent()) / 2 + padding.top,
-					paint);
-				// Turn off drop shadow
-				paint.setShadowLayer(0, 0, 0, 0);
-			} else if (key.icon != null) {
-				final int drawableX = (key.width - padding.left - padding.right 
-								- key.icon.getIntrinsicWidth()) / 2 + padding.left;
-				final int drawableY = (key.height - padding.top - padding.bottom 
-						- key.icon.getIntrinsicHeight()) / 2 + padding.top;
-				canvas.translate(drawableX, drawableY);
-				key.icon.setBounds(0, 0, 
-						key.icon.getIntrinsicWidth(), key.icon.getIntrinsicHeight());
-				key.icon.draw(canvas);
-				canvas.translate(-drawableX, -drawableY);
+			if (!mDrawAll) {
+				canvas.clipRect(0, 0, key.width, key.height, Op.REPLACE);
+				clearBuffer(canvas);
 			}
+			drawKey(canvas, i);
 			canvas.translate(-key.x - kbdPaddingLeft, -key.y - kbdPaddingTop);
+			dirtyKeys[i] = false;
 		}
-		mInvalidatedKey = null;
 		
+		mDrawAll = false;
 		mDrawPending = false;
-		mDirtyRect.setEmpty();
+    }
+    
+    private void clearBuffer(Canvas canvas) {
+    	if (mBufferFormat == BUFFER_FORMAT_RGB_565) {
+    		canvas.drawColor(mBufferFillColor, PorterDuff.Mode.SRC);
+    	} else {
+    		canvas.drawColor(0x00000000, PorterDuff.Mode.CLEAR);
+    	}
     }
 
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		BitmapPool.registerMemoryCallbacks(getContext());
+	}
+	
 	@Override
 	public void onDetachedFromWindow() {
 		super.onDetachedFromWindow();
@@ -745,22 +671,68 @@ public class PassCodeKeyboardView extends View  {
 	}
 	
 	public void closing() {
-		mHandler.removeMessages(MSG_REPEAT);
-		mHandler.removeMessages(MSG_LONGPRESS);
+		final Pointer[] pointers = mPointers;
+		for (int i = 0; i < pointers.length; i++) {
+			if (pointers[i] != null) {
+				pointers[i].timer.cancelAll();
+			}
+		}
 		
-		mBuffer = null;
-		mCanvas = null;
+		releaseDrawingCache();
+		// The frame being drawn may still show the detached view, the buffer only goes
+		// back to the pool after it
+		if (mRetiredBuffer != null) {
+			BitmapPool.releaseAfterNextFrame(mRetiredBuffer);
+			mRetiredBuffer = null;
+		}
+	}
+	
+	/**
+	 * Returns the keyboard bitmap, for tests.
+	 */
+	Bitmap getBuffer() {
+		return mBuffer;
+	}
+	
+	private void releaseDrawingCache() {
+		releaseBuffer();
+		mKeyPictures = null;
+		mKeyStamps = null;
+	}
+	
+	/**
+	 * Drops the keyboard bitmap, a new one is taken on the next draw. The current display
+	 * list may still draw the old bitmap, so it only goes back to the pool after the next
+	 * frame, see {@link #poolRetiredBuffer()}.
+	 */
+	private void releaseBuffer() {
+		if (mBuffer != null) {
+			mRetiredBuffer = mBuffer;
+			mBuffer = null;
+			mCanvas = null;
+		}
 	}
 	
-	private boolean onLongPress(MotionEvent me) {
-		if (mCurrentKey < 0 || mCurrentKey >= mKeys.length) {
+	/**
+	 * Called at the end of {@link #onDraw}, once the frame no longer refers to the
+	 * replaced bitmap.
+	 */
+	private void poolRetiredBuffer() {
+		if (mRetiredBuffer != null) {
+			BitmapPool.release(mRetiredBuffer);
+			mRetiredBuffer = null;
+		}
+	}
+	
+	private boolean onLongPress(Pointer pointer, int keyIndex) {
+		if (keyIndex < 0 || keyIndex >= mKeys.length) {
 			return false;
 		}
-		Key key = mKeys[mCurrentKey];
+		Key key = mKeys[keyIndex];
 		boolean result = onLongPress(key);
 		if (result) {
-			mAbortKey = true;
-			updateKeyState(NOT_A_KEY);
+			pointer.abortKey = true;
+			updateKeyState(pointer, NOT_A_KEY);
 		}
 		return result;
 	}
@@ -770,7 +742,8 @@ public class PassCodeKeyboardView extends View  {
 		if (popupKey != null && popupKey.codes != null && popupKey.codes.length > 0) {
 			int primaryCode = popupKey.codes[0];
 			if (mKeyboardActionListener != null) {
-				for(OnKeyboardActionListener listener : mKeyboardActionListener) {
+				for(int i=0; i<mKeyboardActionListener.size(); i++) {
+					final OnKeyboardActionListener listener = mKeyboardActionListener.get(i);
 					if (listener != null) {
 						result = result || listener.onLongPress(primaryCode);
 					}
@@ -782,7 +755,8 @@ public class PassCodeKeyboardView extends View  {
 	
 	protected void sendActionPress(int primaryCode) {
 		if (mKeyboardActionListener != null) {
-			for(OnKeyboardActionListener listener : mKeyboardActionListener) {
+			for(int i=0; i<mKeyboardActionListener.size(); i++) {
+				final OnKeyboardActionListener listener = mKeyboardActionListener.get(i);
 				if (listener != null) {
 					listener.onPress(primaryCode);
 				}
@@ -792,7 +766,8 @@ public class PassCodeKeyboardView extends View  {
 	
 	protected void sendActionRelease(int primaryCode) {
 		if (mKeyboardActionListener != null) {
-			for(OnKeyboardActionListener listener : mKeyboardActionListener) {
+			for(int i=0; i<mKeyboardActionListener.size(); i++) {
+				final OnKeyboardActionListener listener = mKeyboardActionListener.get(i);
 				if (listener != null) {
 					listener.onRelease(primaryCode);
 				}
@@ -802,7 +777,8 @@ public class PassCodeKeyboardView extends View  {
 	
 	protected void sendActionKey(int primaryCode, int[] keyCodes) {
 		if (mKeyboardActionListener != null) {
-			for(OnKeyboardActionListener listener : mKeyboardActionListener) {
+			for(int i=0; i<mKeyboardActionListener.size(); i++) {
+				final OnKeyboardActionListener listener = mKeyboardActionListener.get(i);
 				if (listener != null) {
 					listener.onKey(primaryCode, keyCodes);
 				}
@@ -812,7 +788,8 @@ public class PassCodeKeyboardView extends View  {
 	
 	protected void sendActionF1Key(int primaryCode) {
 		if (mKeyboardActionListener != null) {
-			for(OnKeyboardActionListener listener : mKeyboardActionListener) {
+			for(int i=0; i<mKeyboardActionListener.size(); i++) {
+				final OnKeyboardActionListener listener = mKeyboardActionListener.get(i);
 				if (listener != null) {
 					listener.onF1Key(primaryCode);
 				}
@@ -822,186 +799,281 @@ public class PassCodeKeyboardView extends View  {
 	
 	@Override
     public boolean onTouchEvent(MotionEvent me) {
-		int touchX = (int) me.getX() - getPaddingLeft();
-		int touchY = (int) me.getY() + mVerticalCorrection - getPaddingTop();
-		int action = me.getAction();
-		long eventTime = me.getEventTime();
-		int keyIndex = getKeyIndices(touchX, touchY, null);
-		
+		final int action = me.getActionMasked();
+		final long eventTime = me.getEventTime();
 		switch (action) {
 			case MotionEvent.ACTION_DOWN:
-				mAbortKey = false;
-				mLastCodeX = touchX;
-				mLastCodeY = touchY;
-				mLastKeyTime = 0;
-				mCurrentKeyTime = 0;
-				mLastKey = NOT_A_KEY;
-				mCurrentKey = keyIndex;
-				mDownTime = me.getEventTime();
-				mLastMoveTime = mDownTime;
-				checkMultiTap(eventTime, keyIndex);
-				sendActionPress(keyIndex != NOT_A_KEY ? mKeys[keyIndex].codes[0] : 0);
-				if (mCurrentKey >= 0 && mKeys[mCurrentKey].repeatable) {
-					mRepeatKeyIndex = mCurrentKey;
-					repeatKey();
-					Message msg = mHandler.obtainMessage(MSG_REPEAT);
-					mHandler.sendMessageDelayed(msg, REPEAT_START_DELAY);
+			case MotionEvent.ACTION_POINTER_DOWN: {
+				if (action == MotionEvent.ACTION_DOWN) {
+					// A gesture that never finished must not keep keys pressed
+					cancelPointers();
 				}
-				if (mCurrentKey != NOT_A_KEY) {
-					Message msg = mHandler.obtainMessage(MSG_LONGPRESS, me);
-					mHandler.sendMessageDelayed(msg, LONGPRESS_TIMEOUT);
+				final int index = me.getActionIndex();
+				final Pointer pointer = obtainPointer(me.getPointerId(index));
+				if (pointer != null) {
+					onPointerDown(pointer, getTouchX(me, index), getTouchY(me, index), eventTime);
 				}
-				updateKeyState(keyIndex);
 				break;
-			case MotionEvent.ACTION_MOVE:
-				boolean continueLongPress = false;
-				if (keyIndex != NOT_A_KEY) {
-					if (mCurrentKey == NOT_A_KEY) {
-						mCurrentKey = keyIndex;
-						mCurrentKeyTime = eventTime - mDownTime;
-					} else {
-						if (keyIndex == mCurrentKey) {
-							mCurrentKeyTime += eventTime - mLastMoveTime;
-							continueLongPress = true;
-						} else {
-							resetMultiTap();
-							mLastKey = mCurrentKey;
-							mLastCodeX = mLastX;
-							mLastCodeY = mLastY;
-							mLastKeyTime =
-									mCurrentKeyTime + eventTime - mLastMoveTime;
-							mCurrentKey = keyIndex;
-							mCurrentKeyTime = 0;
-						}
-					}
-					if (keyIndex != mRepeatKeyIndex) {
-						mHandler.removeMessages(MSG_REPEAT);
-						mRepeatKeyIndex = NOT_A_KEY;
-					}
-				}
-				if (!continueLongPress) {
-					// Cancel old longpress
-					mHandler.removeMessages(MSG_LONGPRESS);
-					// Start new longpress if key has changed
-					if (keyIndex != NOT_A_KEY) {
-						Message msg = mHandler.obtainMessage(MSG_LONGPRESS, me);
-						mHandler.sendMessageDelayed(msg, LONGPRESS_TIMEOUT);
+			}
+			case MotionEvent.ACTION_MOVE: {
+				final int count = me.getPointerCount();
+				final int historySize = me.getHistorySize();
+				for (int i = 0; i < count; i++) {
+					final Pointer pointer = findPointer(me.getPointerId(i));
+					if (pointer == null) continue;
+					// Fast panels batch several samples into one move, replay them in order
+					// so a quick slide does not skip keys or lose time spent on them.
+					for (int h = 0; h < historySize; h++) {
+						onPointerMove(pointer, getHistoricalTouchX(me, i, h),
+								getHistoricalTouchY(me, i, h), me.getHistoricalEventTime(h));
 					}
+					onPointerMove(pointer, getTouchX(me, i), getTouchY(me, i), eventTime);
 				}
-				updateKeyState(keyIndex);
 				break;
+			}
 			case MotionEvent.ACTION_UP:
-				mHandler.removeMessages(MSG_REPEAT);
-				mHandler.removeMessages(MSG_LONGPRESS);
-				if (keyIndex != mCurrentKey) {
-					resetMultiTap();
-					mLastKey = mCurrentKey;
-					mLastKeyTime = mCurrentKeyTime + eventTime - mLastMoveTime;
-					mCurrentKey = keyIndex;
-					mCurrentKeyTime = 0;
-				}
-				if (mCurrentKeyTime < mLastKeyTime && mLastKey != NOT_A_KEY) {
-					mCurrentKey = mLastKey;
-					touchX = mLastCodeX;
-					touchY = mLastCodeY;
+			case MotionEvent.ACTION_POINTER_UP: {
+				final int index = me.getActionIndex();
+				final Pointer pointer = findPointer(me.getPointerId(index));
+				if (pointer != null) {
+					onPointerUp(pointer, getTouchX(me, index), getTouchY(me, index), eventTime);
+					pointer.id = INVALID_POINTER_ID;
 				}
-				updateKeyState(NOT_A_KEY);
-				// If we're not on a repeating key (which sends on a DOWN event)
-				if (mRepeatKeyIndex == NOT_A_KEY && !mAbortKey) {
-					detectAndSendKey(touchX, touchY, eventTime);
-				}
-				invalidateKey(keyIndex);
-				mRepeatKeyIndex = NOT_A_KEY;
+				break;
+			}
+			case MotionEvent.ACTION_CANCEL:
+				cancelPointers();
 				break;
 			default:
 				break;
 		}
-		
-		mLastX = touchX;
-		mLastY = touchY;
 		return true;
 	}
 	
-	private int getKeyIndices(int x, int y, int[] allKeys) {
-		final Key[] keys = mKeys;
-		int primaryIndex = NOT_A_KEY;
-		int closestKey = NOT_A_KEY;
-		int closestKeyDist = mProximityThreshold + 1;
-		java.util.Arrays.fill(mDistances, Integer.MAX_VALUE);
-		int [] nearestKeyIndices = mKeyboard.getNearestKeys(x, y);
-		final int keyCount = nearestKeyIndices.length;
-		
-		for (int i = 0; i < keyCount; i++) {
-			final Key key = keys[nearestKeyIndices[i]];
-			int dist = 0;
-			boolean isInside = key.isInside(x,y);
-			if (((mProximityCorrectOn 
-					&& (dist = key.squaredDistanceFrom(x, y)) < mProximityThreshold) 
-					|| isInside)
-					&& key.codes[0] > 32) {
-				// Find insertion point
-				final int nCodes = key.codes.length;
-				if (dist < closestKeyDist) {
-					closestKeyDist = dist;
-					closestKey = nearestKeyIndices[i];
-				}
-				
-				if (allKeys == null) continue;
-				
-				for (int j = 0; j < mDistances.length; j++) {
-					if (mDistances[j] > dist) {
-						// Make space for nCodes codes
-						System.arraycopy(mDistances, j, mDistances, j + nCodes,
-								mDistances.length - j - nCodes);
-						System.arraycopy(allKeys, j, allKeys, j + nCodes,
-								allKeys.length - j - nCodes);
-						for (int c = 0; c < nCodes; c++) {
-							allKeys[j + c] = key.codes[c];
-							mDistances[j + c] = dist;
-						}
-						break;
-					}
-				}
+	private int getTouchX(MotionEvent me, int pointerIndex) {
+		return (int) me.getX(pointerIndex) - getPaddingLeft();
+	}
+	
+	private int getTouchY(MotionEvent me, int pointerIndex) {
+		return (int) me.getY(pointerIndex) + mVerticalCorrection - getPaddingTop();
+	}
+	
+	private int getHistoricalTouchX(MotionEvent me, int pointerIndex, int pos) {
+		return (int) me.getHistoricalX(pointerIndex, pos) - getPaddingLeft();
+	}
+	
+	private int getHistoricalTouchY(MotionEvent me, int pointerIndex, int pos) {
+		return (int) me.getHistoricalY(pointerIndex, pos) + mVerticalCorrection - getPaddingTop();
+	}
+	
+	private Pointer findPointer(int id) {
+		final Pointer[] pointers = mPointers;
+		for (int i = 0; i < pointers.length; i++) {
+			if (pointers[i] != null && pointers[i].id == id) {
+				return pointers[i];
 			}
-			
-			if (isInside) {
-				primaryIndex = nearestKeyIndices[i];
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns a free pointer slot for the id, or null when every slot is in use.
+	 */
+	private Pointer obtainPointer(int id) {
+		final Pointer[] pointers = mPointers;
+		for (int i = 0; i < pointers.length; i++) {
+			if (pointers[i] == null) {
+				pointers[i] = new Pointer();
+			}
+			if (pointers[i].id == INVALID_POINTER_ID) {
+				pointers[i].id = id;
+				return pointers[i];
 			}
 		}
-		if (primaryIndex == NOT_A_KEY) {
-			primaryIndex = closestKey;
+		return null;
+	}
+	
+	/**
+	 * Releases every pointer without sending its key.
+	 */
+	private void cancelPointers() {
+		final Pointer[] pointers = mPointers;
+		for (int i = 0; i < pointers.length; i++) {
+			final Pointer pointer = pointers[i];
+			if (pointer != null && pointer.id != INVALID_POINTER_ID) {
+				pointer.timer.cancelAll();
+				updateKeyState(pointer, NOT_A_KEY);
+				pointer.repeatKey = NOT_A_KEY;
+				pointer.id = INVALID_POINTER_ID;
+			}
 		}
-		return primaryIndex;
 	}
 	
 	/**
-	 * Compute the average distance between adjacent keys (horizontally and vertically)
-	 * and square it to get the proximity threshold. We use a square here and in computing
-	 * the touch distance from a key's center to avoid taking a square root.
+	 * Forgets every pointer, used when the keys are replaced.
 	 */
-	private void computeProximityThreshold() {
-		final Key[] keys = mKeys;
-		if (keys == null) return;
-		int length = keys.length;
-		int dimensionSum = 0;
-		for (int i = 0; i < length; i++) {
-			Key key = keys[i];
-			dimensionSum += Math.min(key.width, key.height) + key.gap;
+	private void resetPointers() {
+		final Pointer[] pointers = mPointers;
+		for (int i = 0; i < pointers.length; i++) {
+			final Pointer pointer = pointers[i];
+			if (pointer != null) {
+				pointer.timer.cancelAll();
+				pointer.pressedKey = NOT_A_KEY;
+				pointer.currentKey = NOT_A_KEY;
+				pointer.repeatKey = NOT_A_KEY;
+				pointer.id = INVALID_POINTER_ID;
+			}
+		}
+	}
+	
+	private void onPointerDown(Pointer pointer, int touchX, int touchY, long eventTime) {
+		final InputLatencyProbe probe = mLatencyProbe;
+		if (probe != null) {
+			probe.beginKeystroke(eventTime);
+		}
+		final int keyIndex = mKeyboard.getKeyIndices(touchX, touchY, null);
+		if (probe != null) {
+			probe.mark(InputLatencyProbe.STAGE_HIT_TEST);
+		}
+		
+		pointer.abortKey = false;
+		pointer.lastCodeX = touchX;
+		pointer.lastCodeY = touchY;
+		pointer.lastKeyTime = 0;
+		pointer.currentKeyTime = 0;
+		pointer.lastKey = NOT_A_KEY;
+		pointer.currentKey = keyIndex;
+		pointer.downTime = eventTime;
+		pointer.lastMoveTime = eventTime;
+		pointer.repeatKey = NOT_A_KEY;
+		pointer.committed = false;
+		checkMultiTap(eventTime, keyIndex);
+		sendActionPress(keyIndex != NOT_A_KEY ? mKeys[keyIndex].codes[0] : 0);
+		if (keyIndex >= 0 && mKeys[keyIndex].repeatable) {
+			pointer.repeatKey = keyIndex;
+			startRepeat(pointer, keyIndex, eventTime);
+		} else if (keyIndex != NOT_A_KEY && mCommitOnDown) {
+			pointer.committed = true;
+			detectAndSendKey(keyIndex, touchX, touchY, eventTime);
+		}
+		if (keyIndex != NOT_A_KEY) {
+			pointer.timer.startLongPress(keyIndex, eventTime + LONGPRESS_TIMEOUT);
+		}
+		updateKeyState(pointer, keyIndex);
+		pointer.lastX = touchX;
+		pointer.lastY = touchY;
+		pointer.lastHitKey = keyIndex;
+	}
+	
+	private void onPointerMove(Pointer pointer, int touchX, int touchY, long eventTime) {
+		final int keyIndex;
+		if (touchX == pointer.lastX && touchY == pointer.lastY) {
+			keyIndex = pointer.lastHitKey;
+		} else {
+			keyIndex = mKeyboard.getKeyIndices(touchX, touchY, null);
+		}
+		boolean continueLongPress = false;
+		if (keyIndex != NOT_A_KEY) {
+			if (pointer.currentKey == NOT_A_KEY) {
+				pointer.currentKey = keyIndex;
+				pointer.currentKeyTime = eventTime - pointer.downTime;
+			} else {
+				if (keyIndex == pointer.currentKey) {
+					pointer.currentKeyTime += eventTime - pointer.lastMoveTime;
+					continueLongPress = true;
+				} else {
+					resetMultiTap();
+					pointer.lastKey = pointer.currentKey;
+					pointer.lastCodeX = pointer.lastX;
+					pointer.lastCodeY = pointer.lastY;
+					pointer.lastKeyTime =
+							pointer.currentKeyTime + eventTime - pointer.lastMoveTime;
+					pointer.currentKey = keyIndex;
+					pointer.currentKeyTime = 0;
+				}
+			}
+			if (keyIndex != pointer.repeatKey) {
+				pointer.timer.cancelRepeat();
+				pointer.repeatKey = NOT_A_KEY;
+			}
+		}
+		if (!continueLongPress) {
+			// Cancel old longpress
+			pointer.timer.cancelLongPress();
+			// Start new longpress if key has changed
+			if (keyIndex != NOT_A_KEY) {
+				pointer.timer.startLongPress(keyIndex, eventTime + LONGPRESS_TIMEOUT);
+			}
 		}
-		if (dimensionSum < 0 || length == 0) return;
-		mProximityThreshold = (int) (dimensionSum * 1.4f / length);
-		mProximityThreshold *= mProximityThreshold; // Square it
+		updateKeyState(pointer, keyIndex);
+		pointer.lastMoveTime = eventTime;
+		pointer.lastX = touchX;
+		pointer.lastY = touchY;
+		pointer.lastHitKey = keyIndex;
 	}
+	
+	private void onPointerUp(Pointer pointer, int touchX, int touchY, long eventTime) {
+		final InputLatencyProbe probe = mLatencyProbe;
+		if (probe != null && !pointer.committed) {
+			// A key sent on touch down may still be on its way to the screen
+			probe.beginKeystroke(eventTime);
+		}
+		// The release is dispatched from this point, so collect the nearby codes now
+		// rather than hit-testing it a second time in detectAndSendKey.
+		final int keyIndex = fillKeyCodes(touchX, touchY);
+		if (probe != null) {
+			probe.mark(InputLatencyProbe.STAGE_HIT_TEST);
+		}
+		
+		pointer.timer.cancelAll();
+		if (keyIndex != pointer.currentKey) {
+			resetMultiTap();
+			pointer.lastKey = pointer.currentKey;
+			pointer.lastKeyTime = pointer.currentKeyTime + eventTime - pointer.lastMoveTime;
+			pointer.currentKey = keyIndex;
+			pointer.currentKeyTime = 0;
+		}
+		if (pointer.currentKeyTime < pointer.lastKeyTime && pointer.lastKey != NOT_A_KEY) {
+			pointer.currentKey = pointer.lastKey;
+			touchX = pointer.lastCodeX;
+			touchY = pointer.lastCodeY;
+		}
+		updateKeyState(pointer, NOT_A_KEY);
+		// If we're not on a repeating key (which sends on a DOWN event)
+		if (pointer.repeatKey == NOT_A_KEY && !pointer.abortKey && !pointer.committed) {
+			detectAndSendKey(pointer.currentKey, touchX, touchY, eventTime);
+		}
+		invalidateKey(keyIndex);
+		pointer.repeatKey = NOT_A_KEY;
+	}
+	
 
+	/**
+	 * Returns the drawable state for the key, based on the current state of the key.
+	 * @return the drawable state of the key.
+	 * @see android.graphics.drawable.StateListDrawable#setState(int[])
+	 */
+	private static int[] getKeyDrawableState(Key key) {
+		return key.pressed ? KEY_STATE_PRESSED : KEY_STATE_NORMAL;
+	}
+	
 	public void invalidateAllKeys() {
-		mDirtyRect.union(0, 0, getWidth(), getHeight());
-		mDrawPending = true;
+		markAllKeysDirty();
 		invalidate();
 	}
+	
+	private void markAllKeysDirty() {
+		if (mDirtyKeys != null) {
+			Arrays.fill(mDirtyKeys, true);
+		}
+		mDrawAll = true;
+		mDrawPending = true;
+	}
+	
 	/**
 	 * Invalidates a key so that it will be redrawn on the next repaint. Use this method if only
 	 * one key is changing it's content. Any changes that affect the position or size of the key
-	 * may not be honored.
+	 * may not be honored. Keys invalidated within the same frame are redrawn together.
 	 * @param keyIndex the index of the key in the attached {@link Keyboard}.
 	 * @see #invalidateAllKeys
 	 */
@@ -1011,33 +1083,55 @@ public class PassCodeKeyboardView extends View  {
 			return;
 		}
 		final Key key = mKeys[keyIndex];
-		mInvalidatedKey = key;
-		mDirtyRect.union(key.x + getPaddingLeft(), key.y + getPaddingTop(), 
-				key.x + key.width + getPaddingLeft(), key.y + key.height + getPaddingTop());
-		onBufferDraw();
+		mDirtyKeys[keyIndex] = true;
+		mDrawPending = true;
 		invalidate(key.x + getPaddingLeft(), key.y + getPaddingTop(), 
 				key.x + key.width + getPaddingLeft(), key.y + key.height + getPaddingTop());
 	}
 	
-	private boolean repeatKey() {
-		Key key = mKeys[mRepeatKeyIndex];
-		detectAndSendKey(key.x, key.y, mLastTapTime);
-		return true;
+	/**
+	 * Sends the first press of a repeatable key and schedules its repeats. The nearby codes
+	 * are resolved here once and reused by every repeat.
+	 */
+	private void startRepeat(Pointer pointer, int keyIndex, long downTime) {
+		final Key key = mKeys[keyIndex];
+		Arrays.fill(pointer.repeatKeyCodes, NOT_A_KEY);
+		mKeyboard.getKeyIndices(key.x, key.y, pointer.repeatKeyCodes);
+		repeatKey(pointer, keyIndex);
+		pointer.timer.startRepeat(keyIndex, downTime, REPEAT_START_DELAY, REPEAT_INTERVAL);
+	}
+	
+	private void repeatKey(Pointer pointer, int keyIndex) {
+		if (keyIndex < 0 || keyIndex >= mKeys.length) return;
+		final int code = mKeys[keyIndex].codes[0];
+		if (mLatencyProbe != null) {
+			mLatencyProbe.mark(InputLatencyProbe.STAGE_DISPATCH);
+		}
+		sendActionKey(code, pointer.repeatKeyCodes);
+		sendActionRelease(code);
+		mLastSentIndex = keyIndex;
 	}
 	
-	private void updateKeyState(int keyIndex) {
-		int oldKeyIndex = mCurrentKeyIndex;
-		mCurrentKeyIndex = keyIndex;
+	/**
+	 * Moves the pressed state of a pointer to another key. A key stays pressed as long as
+	 * any pointer is still on it.
+	 */
+	private void updateKeyState(Pointer pointer, int keyIndex) {
+		int oldKeyIndex = pointer.pressedKey;
+		pointer.pressedKey = keyIndex;
 		// Release the old key and press the new key
 		final Key[] keys = mKeys;
-		if (oldKeyIndex != mCurrentKeyIndex) {
-			if (oldKeyIndex != NOT_A_KEY && keys.length > oldKeyIndex) {
-				keys[oldKeyIndex].onReleased(mCurrentKeyIndex == NOT_A_KEY);
+		final int[] pressCount = mKeyPressCount;
+		if (oldKeyIndex != keyIndex) {
+			if (oldKeyIndex != NOT_A_KEY && keys.length > oldKeyIndex
+					&& --pressCount[oldKeyIndex] == 0) {
+				keys[oldKeyIndex].onReleased(keyIndex == NOT_A_KEY);
 				invalidateKey(oldKeyIndex);
 			}
-			if (mCurrentKeyIndex != NOT_A_KEY && keys.length > mCurrentKeyIndex) {
-				keys[mCurrentKeyIndex].onPressed();
-				invalidateKey(mCurrentKeyIndex);
+			if (keyIndex != NOT_A_KEY && keys.length > keyIndex
+					&& pressCount[keyIndex]++ == 0) {
+				keys[keyIndex].onPressed();
+				invalidateKey(keyIndex);
 			}
 		}
 	}
@@ -1048,17 +1142,17 @@ public class PassCodeKeyboardView extends View  {
 		return false;
 	}
 	
-	private void detectAndSendKey(int x, int y, long eventTime) {
-		int index = mCurrentKey;
+	private void detectAndSendKey(int index, int x, int y, long eventTime) {
 		if (index != NOT_A_KEY && index < mKeys.length) {
 			final Key key = mKeys[index];
 			if (mKeyboardActionListener != null) {
 				int code = key.codes[0];
-				Log.i(TAG, "detectAndSendKey, code="+code);
+				if (DEBUG) Log.i(TAG, "detectAndSendKey, code="+code);
 				//TextEntryState.keyPressedAt(key, x, y);
-				int[] codes = new int[MAX_NEARBY_KEYS];
-				Arrays.fill(codes, NOT_A_KEY);
-				getKeyIndices(x, y, codes);
+				if (!mKeyCodesValid || mKeyCodesX != x || mKeyCodesY != y) {
+					fillKeyCodes(x, y);
+				}
+				final int[] codes = mKeyCodes;
 				if (isF1KeyCode(code)) {
 					sendActionF1Key(code);
 				}
@@ -1071,12 +1165,30 @@ public class PassCodeKeyboardView extends View  {
 					}
 					code = key.codes[mTapCount];
 				}
+				if (mLatencyProbe != null) {
+					mLatencyProbe.mark(InputLatencyProbe.STAGE_DISPATCH);
+				}
 				sendActionKey(code, codes);
 				sendActionRelease(code);
 			}
 			mLastSentIndex = index;
 			mLastTapTime = eventTime;
 		}
+		mKeyCodesValid = false;
+	}
+	
+	/**
+	 * Hit-tests the point and stores the codes of the nearby keys in {@link #mKeyCodes}.
+	 * The buffer is shared by every dispatched key, so listeners must copy it if they
+	 * need it after {@link OnKeyboardActionListener#onKey} returns.
+	 */
+	private int fillKeyCodes(int x, int y) {
+		Arrays.fill(mKeyCodes, NOT_A_KEY);
+		int keyIndex = mKeyboard.getKeyIndices(x, y, mKeyCodes);
+		mKeyCodesX = x;
+		mKeyCodesY = y;
+		mKeyCodesValid = true;
+		return keyIndex;
 	}
 	
 	private void resetMultiTap() {
@@ -0,0 +1,106 @@
+package com.s16.widget;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.view.View;
+
+/**
+ * Slot geometry shared by {@link PassCodeView} and {@link SimplePassCodeView}.
+ *
+ * The slot rectangles are computed once per size or pin count change, so drawing the
+ * slots does not allocate and a single slot can be invalidated on its own.
+ */
+final class PassCodeSlots {
+
+	private RectF[] mRects = new RectF[0];
+	private float mRadius;
+	private int mWidth;
+	private int mHeight;
+	private int mPinCount;
+	private int mDividerWidth;
+	private boolean mValid;
+
+	/**
+	 * Computes the slot rectangles for a content area of the given size, if it changed.
+	 * @return whether there is anything to draw
+	 */
+	boolean layout(int width, int height, int pinCount, int dividerWidth) {
+		if (mValid && width == mWidth && height == mHeight && pinCount == mPinCount
+				&& dividerWidth == mDividerWidth) {
+			return mRects.length > 0;
+		}
+		mWidth = width;
+		mHeight = height;
+		mPinCount = pinCount;
+		mDividerWidth = dividerWidth;
+		mValid = true;
+
+		if (pinCount < 1 || width == 0 || height < 10) {
+			mRects = new RectF[0];
+			return false;
+		}
+		if (mRects.length != pinCount) {
+			mRects = new RectF[pinCount];
+			for (int i = 0; i < pinCount; i++) {
+				mRects[i] = new RectF();
+			}
+		}
+
+		float slotWidth = height + dividerWidth;
+		float totalWidth = (slotWidth * pinCount) - dividerWidth;
+		float x = (width - totalWidth) * 0.5f;
+		float size = Math.min(slotWidth, height);
+		for (int i = 0; i < pinCount; i++) {
+			mRects[i].set(x, 0, x + size, height);
+			x += slotWidth;
+		}
+		mRadius = size / 8;
+		return true;
+	}
+
+	void invalidateLayout() {
+		mValid = false;
+	}
+
+	/**
+	 * Draws the slots whose bounds intersect the canvas clip, offset by (left, top).
+	 */
+	void draw(Canvas canvas, float left, float top, int filledCount,
+			Paint backgroundPaint, Paint borderPaint, Paint charPaint) {
+		final RectF[] rects = mRects;
+		canvas.translate(left, top);
+		for (int i = 0; i < rects.length; i++) {
+			final RectF rect = rects[i];
+			if (canvas.quickReject(rect, Canvas.EdgeType.AA)) {
+				continue;
+			}
+			canvas.drawRect(rect, backgroundPaint);
+			canvas.drawRect(rect, borderPaint);
+
+			if (filledCount > i) {
+				canvas.drawCircle(rect.centerX(), rect.centerY(), mRadius, charPaint);
+			}
+		}
+		canvas.translate(-left, -top);
+	}
+
+	/**
+	 * Invalidates the slots from start (inclusive) to end (exclusive), offset by (left, top).
+	 * Falls back to invalidating the whole view when no layout has been done yet.
+	 */
+	void invalidate(View view, int left, int top, int start, int end) {
+		final RectF[] rects = mRects;
+		start = Math.max(0, start);
+		end = Math.min(rects.length, end);
+		if (!mValid || start >= end) {
+			view.invalidate();
+			return;
+		}
+		// Borders are stroked on the slot edge, so leave room for half the stroke
+		view.invalidate(left + (int) Math.floor(rects[start].left) - 1,
+				top + (int) Math.floor(rects[start].top) - 1,
+				left + (int) Math.ceil(rects[end - 1].right) + 1,
+				top + (int) Math.ceil(rects[end - 1].bottom) + 1);
+	}
+}
@@ -6,7 +6,6 @@ import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
-import android.graphics.RectF;
 import android.text.Editable;
 import android.text.InputFilter;
 import android.text.TextWatcher;
@@ -36,6 +35,8 @@ public class PassCodeView extends EditText {
 		
 		@Override
 		public void onTextChanged(CharSequence s, int start, int before, int count) {
+			mSlots.invalidate(PassCodeView.this, getScrollX(), getScrollY(),
+					start, start + Math.max(before, count));
 		}
 		
 		@Override
@@ -45,6 +46,11 @@ public class PassCodeView extends EditText {
 		
 		@Override
 		public void afterTextChanged(Editable s) {
+			final InputLatencyProbe probe = getLatencyProbe();
+			if (probe != null && probe.isKeystrokeInFlight()) {
+				probe.mark(InputLatencyProbe.STAGE_TEXT_WATCHER);
+				mLatencyFramePending = true;
+			}
 			if (s != null && s.length() == mPinCount) {
 				if (mOnCompleteListener != null) {
 					mOnCompleteListener.onComplete(PassCodeView.this, s);
@@ -69,6 +75,11 @@ public class PassCodeView extends EditText {
 					KeyEvent.FLAG_SOFT_KEYBOARD | KeyEvent.FLAG_KEEP_TOUCH_MODE);
 
 			dispatchKeyEvent(event);
+			
+			final InputLatencyProbe probe = getLatencyProbe();
+			if (probe != null) {
+				probe.mark(InputLatencyProbe.STAGE_KEY_EVENT);
+			}
 		}
 		
 		@Override
@@ -90,6 +101,8 @@ public class PassCodeView extends EditText {
 	private Paint mCharPaint;
 	private OnCompleteListener mOnCompleteListener;
 	private PassCodeKeyboardView mKeyboardView;
+	private boolean mLatencyFramePending;
+	private final PassCodeSlots mSlots = new PassCodeSlots();
 	
 	public PassCodeView(Context context) {
 		super(context);
@@ -182,33 +195,25 @@ public class PassCodeView extends EditText {
     }
     
     protected void drawPasscode(Canvas canvas) {
-    	RectF bounds = new RectF(canvas.getClipBounds());
-    	if (mPinCount < 1) return;
-    	if (bounds.width() == 0 || bounds.height() == 0) return;
-    	
-    	float height = bounds.height();
-    	if (height < 10) return;
-    	float width = height + mDividerWidth;
-    	float totalWidth = (width * mPinCount) - mDividerWidth;
-    	float x = bounds.left + ((bounds.width() - totalWidth) * 0.5f);
-    	float size = Math.min(width, height);
+    	if (!mSlots.layout(getWidth(), getHeight(), mPinCount, mDividerWidth)) return;
     	
     	int charCount = getText() != null ? getText().length() : 0; 
-    	RectF rect = null;
-    	for(int i=0; i<mPinCount; i++) {
-    		rect = new RectF(x, bounds.top, x + size, bounds.bottom);
-    		canvas.drawRect(rect, mBackgroundPaint);
-    		canvas.drawRect(rect, mBorderPaint);
-    		
-    		if (charCount > i) {
-    			float radius = size / 8;
-    			canvas.drawCircle(rect.centerX(), rect.centerY(), radius, mCharPaint);
+    	mSlots.draw(canvas, getScrollX(), getScrollY(), charCount, 
+    			mBackgroundPaint, mBorderPaint, mCharPaint);
+    	
+    	if (mLatencyFramePending) {
+    		mLatencyFramePending = false;
+    		final InputLatencyProbe probe = getLatencyProbe();
+    		if (probe != null) {
+    			probe.endKeystroke(InputLatencyProbe.STAGE_FRAME);
     		}
-    		
-    		x += width;
     	}
     }
     
+    private InputLatencyProbe getLatencyProbe() {
+    	return mKeyboardView != null ? mKeyboardView.getLatencyProbe() : null;
+    }
+    
     private void showSoftKeyboard(boolean doFocus) {
     	if (mKeyboardView != null) return;
 	    InputMethodManager inputMethodManager = (InputMethodManager)getContext().getSystemService(Context.INPUT_METHOD_SERVICE);
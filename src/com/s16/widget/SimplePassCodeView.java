@@ -0,0 +1,233 @@
+package com.s16.widget;
+
+import java.security.InvalidParameterException;
+import java.util.Arrays;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.util.DisplayMetrics;
+import android.util.TypedValue;
+import android.view.KeyEvent;
+import android.view.View;
+
+/**
+ * A lightweight alternative to {@link PassCodeView} built on a plain {@link View}.
+ *
+ * Instead of going through an EditText, the codes from the attached
+ * {@link PassCodeKeyboardView} are written straight into a fixed-size digit buffer.
+ * The view has no text input connection, so it needs a keyboard view to receive input.
+ */
+public class SimplePassCodeView extends View {
+
+	public interface OnCompleteListener {
+		public void onComplete(View view, CharSequence passcode);
+	}
+
+	private static final int DEFAULT_BACKGROUND_COLOR = 0xffffffff;
+	private static final int DEFAULT_BORDER_COLOR = 0xff000000;
+	private static final int DEFAULT_CHAR_COLOR = 0xff000000;
+
+	private static final int DEFAULT_PIN_COUNT = 4;
+	private static final int DEFAULT_DIVIDER_WIDTH = 10;
+	private static final int DEFAULT_HEIGHT = 48;
+
+	private PassCodeKeyboardView.OnKeyboardActionListener mKeyboardActionListener = new PassCodeKeyboardView.OnKeyboardActionListener() {
+
+		@Override
+		public void onRelease(int primaryCode) {}
+
+		@Override
+		public void onPress(int primaryCode) {}
+
+		@Override
+		public void onKey(int primaryCode, int[] keyCodes) {
+			if (primaryCode >= KeyEvent.KEYCODE_0 && primaryCode <= KeyEvent.KEYCODE_9) {
+				append((char) ('0' + primaryCode - KeyEvent.KEYCODE_0));
+			} else if (primaryCode == PassCodeKeyboard.KEYCODE_DELETE) {
+				deleteLast();
+			}
+		}
+
+		@Override
+		public void onF1Key(int code) {
+			if (code == PassCodeKeyboardView.KEYCODE_CLEAR)
+				clear();
+		}
+
+		@Override
+		public boolean onLongPress(int primaryCode) {
+			return false;
+		}
+	};
+
+	private int mPinCount = DEFAULT_PIN_COUNT;
+	private char[] mDigits = new char[DEFAULT_PIN_COUNT];
+	private int mLength;
+
+	private int mDividerWidth;
+	private Paint mBackgroundPaint;
+	private Paint mBorderPaint;
+	private Paint mCharPaint;
+	private final PassCodeSlots mSlots = new PassCodeSlots();
+	private OnCompleteListener mOnCompleteListener;
+	private PassCodeKeyboardView mKeyboardView;
+	private boolean mLatencyFramePending;
+
+	public SimplePassCodeView(Context context) {
+		super(context);
+		init();
+	}
+
+	public SimplePassCodeView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		init();
+	}
+
+	public SimplePassCodeView(Context context, AttributeSet attrs, int defStyle) {
+		super(context, attrs, defStyle);
+		init();
+	}
+
+	private void init() {
+		mBackgroundPaint = new Paint();
+		mBackgroundPaint.setAntiAlias(true);
+		mBackgroundPaint.setStyle(Paint.Style.FILL);
+		mBackgroundPaint.setColor(DEFAULT_BACKGROUND_COLOR);
+
+		mBorderPaint = new Paint();
+		mBorderPaint.setAntiAlias(true);
+		mBorderPaint.setStyle(Paint.Style.STROKE);
+		mBorderPaint.setColor(DEFAULT_BORDER_COLOR);
+
+		mCharPaint = new Paint();
+		mCharPaint.setAntiAlias(true);
+		mCharPaint.setStyle(Paint.Style.FILL);
+		mCharPaint.setColor(DEFAULT_CHAR_COLOR);
+
+		mDividerWidth = getDimensionDip(DEFAULT_DIVIDER_WIDTH);
+	}
+
+	protected int getDimensionDip(int value) {
+		DisplayMetrics dm = getResources().getDisplayMetrics();
+		int result = (int)TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, value, dm);
+		if (result == 0) {
+			result = (int)(value * dm.density);
+		}
+		return result;
+	}
+
+	@Override
+	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+		int height = getDimensionDip(DEFAULT_HEIGHT) + getPaddingTop() + getPaddingBottom();
+		setMeasuredDimension(getDefaultSize(getSuggestedMinimumWidth(), widthMeasureSpec),
+				resolveSize(height, heightMeasureSpec));
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		drawPasscode(canvas);
+	}
+
+	protected void drawPasscode(Canvas canvas) {
+		final int width = getWidth() - getPaddingLeft() - getPaddingRight();
+		final int height = getHeight() - getPaddingTop() - getPaddingBottom();
+		if (width <= 0 || height <= 0) return;
+		if (!mSlots.layout(width, height, mPinCount, mDividerWidth)) return;
+
+		mSlots.draw(canvas, getPaddingLeft(), getPaddingTop(), mLength,
+				mBackgroundPaint, mBorderPaint, mCharPaint);
+
+		if (mLatencyFramePending) {
+			mLatencyFramePending = false;
+			final InputLatencyProbe probe = getLatencyProbe();
+			if (probe != null) {
+				probe.endKeystroke(InputLatencyProbe.STAGE_FRAME);
+			}
+		}
+	}
+
+	private InputLatencyProbe getLatencyProbe() {
+		return mKeyboardView != null ? mKeyboardView.getLatencyProbe() : null;
+	}
+
+	private void onDigitsChanged(int start, int end) {
+		mSlots.invalidate(this, getPaddingLeft(), getPaddingTop(), start, end);
+		final InputLatencyProbe probe = getLatencyProbe();
+		if (probe != null && probe.isKeystrokeInFlight()) {
+			// The buffer write stands in for the key event and text watcher stages
+			probe.mark(InputLatencyProbe.STAGE_KEY_EVENT);
+			mLatencyFramePending = true;
+		}
+	}
+
+	private void append(char digit) {
+		if (mLength >= mPinCount) return;
+		mDigits[mLength++] = digit;
+		onDigitsChanged(mLength - 1, mLength);
+		if (mLength == mPinCount && mOnCompleteListener != null) {
+			mOnCompleteListener.onComplete(this, getPassCode());
+		}
+	}
+
+	private void deleteLast() {
+		if (mLength == 0) return;
+		mDigits[--mLength] = 0;
+		onDigitsChanged(mLength, mLength + 1);
+	}
+
+	/**
+	 * Clears the entered digits.
+	 */
+	public void clear() {
+		if (mLength == 0) return;
+		Arrays.fill(mDigits, (char) 0);
+		onDigitsChanged(0, mLength);
+		mLength = 0;
+	}
+
+	/**
+	 * Returns a copy of the entered digits.
+	 */
+	public String getPassCode() {
+		return new String(mDigits, 0, mLength);
+	}
+
+	public int length() {
+		return mLength;
+	}
+
+	public boolean isPassCodeComplete() {
+		return mLength == mPinCount;
+	}
+
+	public void setPinCount(int count) {
+		if (count < 1) {
+			throw new InvalidParameterException();
+		}
+		if (mPinCount != count) {
+			mPinCount = count;
+			char[] digits = new char[count];
+			mLength = Math.min(mLength, count);
+			System.arraycopy(mDigits, 0, digits, 0, mLength);
+			Arrays.fill(mDigits, (char) 0);
+			mDigits = digits;
+			invalidate();
+		}
+	}
+
+	public void setOnCompleteListener(OnCompleteListener listener) {
+		mOnCompleteListener = listener;
+	}
+
+	public void setKeyboardView(PassCodeKeyboardView keyboardView) {
+		if (mKeyboardView != null) {
+			mKeyboardView.removeOnKeyboardActionListener(mKeyboardActionListener);
+		}
+		mKeyboardView = keyboardView;
+		if (mKeyboardView != null) {
+			mKeyboardView.addOnKeyboardActionListener(mKeyboardActionListener);
+		}
+	}
+}
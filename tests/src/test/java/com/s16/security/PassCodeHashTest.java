@@ -0,0 +1,74 @@
+package com.s16.security;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class PassCodeHashTest {
+
+	private static final String SALT = "000102030405060708090a0b0c0d0e0f";
+	private static final String KEY = "ffeeddccbbaa99887766554433221100ffeeddccbbaa99887766554433221100";
+
+	@Test
+	public void encodeDecodeRoundTrip() {
+		PassCodeHash hash = PassCodeHash.decode("4096$8$1$" + SALT + "$" + KEY);
+		assertNotNull(hash);
+		assertEquals(4096, hash.getCost());
+		assertEquals(8, hash.getBlockSize());
+		assertEquals(1, hash.getParallelization());
+		assertEquals(32, hash.getKeyLength());
+
+		PassCodeHash decoded = PassCodeHash.decode(hash.encode());
+		assertNotNull(decoded);
+		assertEquals(hash.encode(), decoded.encode());
+		assertArrayEquals(hash.getSalt(), decoded.getSalt());
+	}
+
+	@Test
+	public void rejectsCostThatIsNotAPowerOfTwo() {
+		assertNull(decode("4095", "8", "1"));
+		assertNull(decode("0", "8", "1"));
+		assertNull(decode("1", "8", "1"));
+		assertNull(decode("-4096", "8", "1"));
+	}
+
+	@Test
+	public void rejectsParametersOutOfRange() {
+		assertNull(decode(String.valueOf(PassCodeVerifier.MAX_COST * 2), "8", "1"));
+		assertNull(decode(String.valueOf(1 << 30), "8", "1"));
+		assertNull(decode("4096", "0", "1"));
+		assertNull(decode("4096", "1024", "1"));
+		assertNull(decode("4096", "8", "0"));
+		assertNull(decode("4096", "8", "100000"));
+		assertNotNull(decode(String.valueOf(PassCodeVerifier.MAX_COST), "8", "1"));
+	}
+
+	@Test
+	public void rejectsMalformedStrings() {
+		assertNull(PassCodeHash.decode(null));
+		assertNull(PassCodeHash.decode(""));
+		assertNull(PassCodeHash.decode("4096$8$1$" + SALT));
+		assertNull(PassCodeHash.decode("4096$8$1$" + SALT + "$"));
+		assertNull(PassCodeHash.decode("4096$8$1$" + SALT + "$" + KEY.substring(1)));
+		assertNull(PassCodeHash.decode("4096$8$1$zz$" + KEY));
+		assertNull(PassCodeHash.decode("x$8$1$" + SALT + "$" + KEY));
+	}
+
+	@Test
+	public void rejectsOversizedSaltAndKey() {
+		StringBuilder longHex = new StringBuilder();
+		for (int i = 0; i < 65; i++) {
+			longHex.append("ab");
+		}
+		assertNull(PassCodeHash.decode("4096$8$1$" + longHex + "$" + KEY));
+		assertNull(PassCodeHash.decode("4096$8$1$" + SALT + "$" + longHex));
+	}
+
+	private static PassCodeHash decode(String cost, String blockSize, String parallelization) {
+		return PassCodeHash.decode(cost + "$" + blockSize + "$" + parallelization + "$" + SALT
+				+ "$" + KEY);
+	}
+}
@@ -0,0 +1,322 @@
+package com.s16.security;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PassCodeStoreTest {
+
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable r) {
+			r.run();
+		}
+	};
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private File mFile;
+	private File mTempFile;
+	private ExecutorService mExecutor;
+
+	@Before
+	public void setUp() {
+		mFile = new File(mFolder.getRoot(), "passcode.properties");
+		mTempFile = new File(mFile.getPath() + ".tmp");
+		mExecutor = Executors.newSingleThreadExecutor();
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		// Let pending writes finish before the folder is deleted
+		mExecutor.shutdown();
+		assertTrue(mExecutor.awaitTermination(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void leftoverTempFileIsIgnored() throws Exception {
+		writeProperties(mFile, "passcode", "old");
+		// A write that was interrupted before its rename
+		writeBytes(mTempFile, "passcode=new\npasscode_pend".getBytes("ISO-8859-1"));
+
+		PassCodeStore store = newStore();
+		loadAndWait(store);
+
+		assertEquals("old", store.getString("passcode"));
+		assertNull(store.getString("passcode_pending"));
+		assertFalse(mTempFile.exists());
+	}
+
+	@Test
+	public void writeReplacesFileByRename() throws Exception {
+		writeProperties(mFile, "passcode", "old");
+		final Object oldFileKey = Files.readAttributes(mFile.toPath(),
+				java.nio.file.attribute.BasicFileAttributes.class).fileKey();
+
+		PassCodeStore store = newStore();
+		store.putString("passcode", "new");
+		closeAndWait(store);
+
+		assertEquals("new", readProperties(mFile).getProperty("passcode"));
+		assertFalse(mTempFile.exists());
+		final Object newFileKey = Files.readAttributes(mFile.toPath(),
+				java.nio.file.attribute.BasicFileAttributes.class).fileKey();
+		if (oldFileKey != null) {
+			// A new file was renamed over the old one, it was not rewritten in place
+			assertNotEquals(oldFileKey, newFileKey);
+		}
+	}
+
+	@Test
+	public void removeBeforeLoadIsNotUndoneByLoad() throws Exception {
+		writeProperties(mFile, "passcode", "secret", "other", "kept");
+
+		PassCodeStore store = newStore();
+		store.remove("passcode");
+		loadAndWait(store);
+
+		assertNull(store.getString("passcode"));
+		assertEquals("kept", store.getString("other"));
+		closeAndWait(store);
+
+		Properties properties = readProperties(mFile);
+		assertNull(properties.getProperty("passcode"));
+		assertEquals("kept", properties.getProperty("other"));
+	}
+
+	@Test
+	public void putAfterRemoveBeforeLoadKeepsNewValue() throws Exception {
+		writeProperties(mFile, "passcode", "secret");
+
+		PassCodeStore store = newStore();
+		store.remove("passcode");
+		store.putString("passcode", "new");
+		loadAndWait(store);
+
+		assertEquals("new", store.getString("passcode"));
+	}
+
+	@Test
+	public void putBeforeLoadTakesPrecedence() throws Exception {
+		writeProperties(mFile, "passcode", "old", "other", "kept");
+
+		PassCodeStore store = newStore();
+		store.putString("passcode", "new");
+		loadAndWait(store);
+
+		assertEquals("new", store.getString("passcode"));
+		assertEquals("kept", store.getString("other"));
+	}
+
+	@Test
+	public void storeIsLoadedLazilyOffTheCallingThread() throws Exception {
+		writeProperties(mFile, "passcode", "secret");
+		RecordingExecutor executor = new RecordingExecutor();
+
+		PassCodeStore store = new PassCodeStore(mFile, executor, DIRECT);
+		assertEquals(0, executor.tasks.size());
+		assertFalse(store.isLoaded());
+		assertNull(store.getString("passcode"));
+		assertEquals(0, executor.tasks.size());
+
+		final boolean[] loaded = new boolean[1];
+		store.load(new PassCodeStore.OnLoadListener() {
+			@Override
+			public void onLoaded(PassCodeStore s) {
+				loaded[0] = true;
+			}
+		});
+		store.load(new PassCodeStore.OnLoadListener() {
+			@Override
+			public void onLoaded(PassCodeStore s) {
+			}
+		});
+		// Nothing is read until the background task runs, and it is only queued once
+		assertEquals(1, executor.tasks.size());
+		assertFalse(loaded[0]);
+
+		executor.runAll();
+		assertTrue(loaded[0]);
+		assertEquals("secret", store.getString("passcode"));
+	}
+
+	@Test
+	public void writesAreCoalesced() throws Exception {
+		RecordingExecutor executor = new RecordingExecutor();
+		PassCodeStore store = new PassCodeStore(mFile, executor, DIRECT);
+		for (int i = 0; i < 10; i++) {
+			store.putString("key" + i, "value" + i);
+		}
+		// One load and one write
+		assertEquals(2, executor.tasks.size());
+
+		executor.runAll();
+		Properties properties = readProperties(mFile);
+		assertEquals(10, properties.size());
+		assertEquals("value9", properties.getProperty("key9"));
+	}
+
+	@Test
+	public void unreadableFileIsNotOverwritten() throws Exception {
+		// A good value followed by a corrupt line that makes Properties.load() fail
+		final byte[] contents = "passcode=secret\nother=\\uZZZZ\n".getBytes("ISO-8859-1");
+		writeBytes(mFile, contents);
+
+		PassCodeStore store = newStore();
+		store.putString("pending", "value");
+		loadAndWait(store);
+		assertEquals("value", store.getString("pending"));
+		store.remove("pending");
+		store.putString("passcode", "new");
+		closeAndWait(store);
+
+		assertArrayEquals(contents, Files.readAllBytes(mFile.toPath()));
+		assertFalse(mTempFile.exists());
+	}
+
+	@Test
+	public void changesAfterCloseAreRejected() throws Exception {
+		PassCodeStore store = newStore();
+		closeAndWait(store);
+		try {
+			store.putString("passcode", "new");
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		try {
+			store.load(new PassCodeStore.OnLoadListener() {
+				@Override
+				public void onLoaded(PassCodeStore s) {
+				}
+			});
+			fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	private PassCodeStore newStore() {
+		return new PassCodeStore(mFile, mExecutor, DIRECT);
+	}
+
+	private static void loadAndWait(PassCodeStore store) throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(1);
+		store.load(new PassCodeStore.OnLoadListener() {
+			@Override
+			public void onLoaded(PassCodeStore s) {
+				latch.countDown();
+			}
+		});
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+	}
+
+	private void closeAndWait(PassCodeStore store) throws InterruptedException {
+		store.close();
+		assertTrue(mExecutor.awaitTermination(5, TimeUnit.SECONDS));
+	}
+
+	private static void writeProperties(File file, String... keyValues) throws IOException {
+		Properties properties = new Properties();
+		for (int i = 0; i < keyValues.length; i += 2) {
+			properties.setProperty(keyValues[i], keyValues[i + 1]);
+		}
+		OutputStream out = new FileOutputStream(file);
+		try {
+			properties.store(out, null);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void writeBytes(File file, byte[] bytes) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static Properties readProperties(File file) throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		return properties;
+	}
+
+	/**
+	 * Queues tasks until the test runs them on its own thread.
+	 */
+	private static class RecordingExecutor extends AbstractExecutorService {
+		final List<Runnable> tasks = new ArrayList<Runnable>();
+		private boolean mShutdown;
+
+		@Override
+		public void execute(Runnable command) {
+			tasks.add(command);
+		}
+
+		void runAll() {
+			while (!tasks.isEmpty()) {
+				tasks.remove(0).run();
+			}
+		}
+
+		@Override
+		public void shutdown() {
+			mShutdown = true;
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			mShutdown = true;
+			return new ArrayList<Runnable>(tasks);
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return mShutdown;
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return mShutdown && tasks.isEmpty();
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) {
+			return isTerminated();
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package com.s16.widget;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the repeat deadline arithmetic of {@link KeyRepeatTimer}. The timer itself posts to
+ * a Handler and is not created here.
+ */
+public class KeyRepeatTimerTest {
+
+	private static final int INTERVAL = 50;
+	private static final long START = 1000;
+
+	@Test
+	public void onTimeRepeatAdvancesByOneInterval() {
+		assertEquals(START + INTERVAL, KeyRepeatTimer.nextRepeatTime(START, START, INTERVAL));
+	}
+
+	@Test
+	public void lateRepeatDoesNotPushTheNextOneBack() {
+		assertEquals(START + INTERVAL, KeyRepeatTimer.nextRepeatTime(START, START + 1, INTERVAL));
+		assertEquals(START + INTERVAL,
+				KeyRepeatTimer.nextRepeatTime(START, START + INTERVAL - 1, INTERVAL));
+	}
+
+	@Test
+	public void missedRepeatsAreSkipped() {
+		// Ran exactly on the next deadline: that one is already due, so it is skipped
+		assertEquals(START + 2 * INTERVAL,
+				KeyRepeatTimer.nextRepeatTime(START, START + INTERVAL, INTERVAL));
+		// Stalled for three and a half intervals: three repeats are skipped, not sent in a burst
+		assertEquals(START + 4 * INTERVAL,
+				KeyRepeatTimer.nextRepeatTime(START, START + 3 * INTERVAL + INTERVAL / 2, INTERVAL));
+	}
+
+	@Test
+	public void deadlinesDoNotDriftUnderJitter() {
+		final Random random = new Random(42);
+		final int repeats = 10000;
+		long scheduled = START;
+		for (int i = 1; i <= repeats; i++) {
+			// Each repeat runs up to just under an interval late
+			final long now = scheduled + random.nextInt(INTERVAL);
+			scheduled = KeyRepeatTimer.nextRepeatTime(scheduled, now, INTERVAL);
+			assertEquals(START + (long) i * INTERVAL, scheduled);
+		}
+	}
+
+	@Test
+	public void deadlinesStayOnTheGridAndInTheFuture() {
+		final Random random = new Random(7);
+		long scheduled = START;
+		for (int i = 0; i < 10000; i++) {
+			// Occasional stalls of several intervals
+			final long now = scheduled + (random.nextInt(10) == 0
+					? random.nextInt(8 * INTERVAL) : random.nextInt(INTERVAL));
+			final long next = KeyRepeatTimer.nextRepeatTime(scheduled, now, INTERVAL);
+			assertEquals(0, (next - START) % INTERVAL);
+			assertTrue(next > now);
+			assertTrue(next - now <= INTERVAL);
+			scheduled = next;
+		}
+	}
+}
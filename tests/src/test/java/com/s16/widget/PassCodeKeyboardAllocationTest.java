@@ -0,0 +1,80 @@
+package com.s16.widget;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that resolving a touch, the part of the touch-to-onKey path that runs for every
+ * touch event, does not allocate.
+ */
+public class PassCodeKeyboardAllocationTest {
+
+	private static final int WIDTH = 720;
+	private static final int HEIGHT = 960;
+	private static final int TOUCH_COUNT = 4096;
+
+	private com.sun.management.ThreadMXBean mThreadBean;
+	private PassCodeKeyboard mKeyboard;
+	private final int[] mTouchX = new int[TOUCH_COUNT];
+	private final int[] mTouchY = new int[TOUCH_COUNT];
+	private final int[] mCodes = new int[PassCodeKeyboard.MAX_NEARBY_KEYS];
+
+	@Before
+	public void setUp() {
+		assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		mThreadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(mThreadBean.isThreadAllocatedMemorySupported());
+		mThreadBean.setThreadAllocatedMemoryEnabled(true);
+
+		mKeyboard = new PassCodeKeyboard(WIDTH * 2);
+		mKeyboard.setProximityCorrectionEnabled(true);
+		mKeyboard.resize(WIDTH, HEIGHT);
+		final Random random = new Random(1);
+		for (int i = 0; i < TOUCH_COUNT; i++) {
+			// Include points just outside the keyboard
+			mTouchX[i] = random.nextInt(WIDTH + 20) - 10;
+			mTouchY[i] = random.nextInt(HEIGHT + 20) - 10;
+		}
+	}
+
+	@Test
+	public void hitTestDoesNotAllocate() {
+		// The lookup table is built with the geometry, nothing is left to build lazily
+		hitTest(false);
+		assertEquals(0, allocatedBytes(false));
+	}
+
+	@Test
+	public void hitTestWithCodesDoesNotAllocate() {
+		hitTest(true);
+		assertEquals(0, allocatedBytes(true));
+	}
+
+	private long allocatedBytes(boolean withCodes) {
+		final long thread = Thread.currentThread().getId();
+		// Reading the counter can allocate, so measure that and take it off
+		long before = mThreadBean.getThreadAllocatedBytes(thread);
+		long after = mThreadBean.getThreadAllocatedBytes(thread);
+		final long overhead = after - before;
+
+		before = mThreadBean.getThreadAllocatedBytes(thread);
+		hitTest(withCodes);
+		after = mThreadBean.getThreadAllocatedBytes(thread);
+		return Math.max(0, after - before - overhead);
+	}
+
+	private int hitTest(boolean withCodes) {
+		int sum = 0;
+		final int[] codes = withCodes ? mCodes : null;
+		for (int i = 0; i < TOUCH_COUNT; i++) {
+			sum += mKeyboard.getKeyIndices(mTouchX[i], mTouchY[i], codes);
+		}
+		return sum;
+	}
+}
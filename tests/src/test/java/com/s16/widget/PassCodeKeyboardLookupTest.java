@@ -0,0 +1,190 @@
+package com.s16.widget;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.s16.widget.PassCodeKeyboard.Key;
+
+/**
+ * Checks that the touch lookup table is built with the key geometry and that it resolves
+ * touches exactly like testing every key does.
+ */
+public class PassCodeKeyboardLookupTest {
+
+	private static final int DISPLAY_WIDTH = 1600;
+	private static final int[][] SIZES = {
+		{ 1080, 1440 }, { 721, 963 }, { 480, 641 }, { 301, 397 }, { 40, 50 },
+	};
+	private static final int SAMPLE_COUNT = 200000;
+
+	@Test
+	public void lookupTableIsBuiltWithTheGeometry() {
+		final PassCodeKeyboard keyboard = new PassCodeKeyboard(DISPLAY_WIDTH);
+		assertEquals(1, keyboard.getNeighborBuildCount());
+		hitTestAll(keyboard);
+		assertEquals(1, keyboard.getNeighborBuildCount());
+
+		keyboard.resize(720, 960);
+		assertEquals(2, keyboard.getNeighborBuildCount());
+		hitTestAll(keyboard);
+		assertEquals(2, keyboard.getNeighborBuildCount());
+
+		// Already fits, the geometry does not change
+		keyboard.resize(1000, 1000);
+		assertEquals(2, keyboard.getNeighborBuildCount());
+	}
+
+	@Test
+	public void matchesLinearScanWithoutProximityCorrection() {
+		checkAgainstLinearScan(false);
+	}
+
+	@Test
+	public void matchesLinearScanWithProximityCorrection() {
+		checkAgainstLinearScan(true);
+	}
+
+	private static void checkAgainstLinearScan(boolean proximityCorrectOn) {
+		final PassCodeKeyboard keyboard = new PassCodeKeyboard(DISPLAY_WIDTH);
+		keyboard.setProximityCorrectionEnabled(proximityCorrectOn);
+		final LinearScan scan = new LinearScan(keyboard);
+		final Random random = new Random(proximityCorrectOn ? 2 : 1);
+		compare(keyboard, scan, proximityCorrectOn, random);
+		for (int i = 0; i < SIZES.length; i++) {
+			keyboard.resize(SIZES[i][0], SIZES[i][1]);
+			compare(keyboard, scan, proximityCorrectOn, random);
+		}
+	}
+
+	private static void compare(PassCodeKeyboard keyboard, LinearScan scan,
+			boolean proximityCorrectOn, Random random) {
+		final int width = keyboard.getMinWidth();
+		final int height = keyboard.getHeight();
+		final int[] codes = new int[PassCodeKeyboard.MAX_NEARBY_KEYS];
+		final int[] expectedCodes = new int[PassCodeKeyboard.MAX_NEARBY_KEYS];
+		for (int i = 0; i < SAMPLE_COUNT; i++) {
+			final int x = random.nextInt(width);
+			final int y = random.nextInt(height);
+			final String at = width + "x" + height + " at " + x + "," + y;
+
+			final int expected = scan.getKeyIndices(x, y, null, proximityCorrectOn);
+			assertEquals(at, expected, keyboard.getKeyIndices(x, y, null));
+
+			Arrays.fill(codes, PassCodeKeyboard.NOT_A_KEY);
+			Arrays.fill(expectedCodes, PassCodeKeyboard.NOT_A_KEY);
+			assertEquals(at, expected, scan.getKeyIndices(x, y, expectedCodes, proximityCorrectOn));
+			assertEquals(at, expected, keyboard.getKeyIndices(x, y, codes));
+			assertArrayEquals(at, expectedCodes, codes);
+		}
+	}
+
+	private static int hitTestAll(PassCodeKeyboard keyboard) {
+		int sum = 0;
+		final int[] codes = new int[PassCodeKeyboard.MAX_NEARBY_KEYS];
+		for (int y = 0; y < keyboard.getHeight(); y += 7) {
+			for (int x = 0; x < keyboard.getMinWidth(); x += 7) {
+				sum += keyboard.getKeyIndices(x, y, null) + keyboard.getKeyIndices(x, y, codes);
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * The rules of the hit test before the lookup table, applied to every key rather than
+	 * to the neighbors of a grid cell: the last key containing the point wins and the codes are sorted by distance, keeping
+	 * key order for equal distances. The proximity threshold is taken when the keyboard is
+	 * created and is not updated by a resize.
+	 */
+	private static final class LinearScan {
+
+		private final Key[] mKeys;
+		private final int mKeyProximityThreshold;
+
+		LinearScan(PassCodeKeyboard keyboard) {
+			final List<Key> keys = keyboard.getKeys();
+			mKeys = keys.toArray(new Key[keys.size()]);
+			int dimensionSum = 0;
+			for (int i = 0; i < mKeys.length; i++) {
+				dimensionSum += Math.min(mKeys[i].width, mKeys[i].height) + mKeys[i].gap;
+			}
+			final int threshold = (int) (dimensionSum * 1.4f / mKeys.length);
+			mKeyProximityThreshold = threshold * threshold;
+		}
+
+		int getKeyIndices(int x, int y, int[] allKeys, boolean proximityCorrectOn) {
+			final Key[] keys = mKeys;
+			final int[] distances = new int[keys.length];
+			final int[] order = new int[keys.length];
+			int count = 0;
+			int primaryIndex = PassCodeKeyboard.NOT_A_KEY;
+			int closestKey = PassCodeKeyboard.NOT_A_KEY;
+			int closestKeyDist = mKeyProximityThreshold + 1;
+			for (int i = 0; i < keys.length; i++) {
+				final Key key = keys[i];
+				final boolean isInside = isInside(key, x, y);
+				int dist = 0;
+				if (proximityCorrectOn) {
+					dist = squaredDistanceFrom(key, x, y);
+				}
+				if (((proximityCorrectOn && dist < mKeyProximityThreshold) || isInside)
+						&& key.codes[0] > 32) {
+					if (dist < closestKeyDist) {
+						closestKeyDist = dist;
+						closestKey = i;
+					}
+					distances[count] = dist;
+					order[count] = i;
+					count++;
+				}
+				if (isInside) {
+					primaryIndex = i;
+				}
+			}
+			if (allKeys != null) {
+				// Stable insertion sort by distance
+				for (int i = 1; i < count; i++) {
+					final int dist = distances[i];
+					final int index = order[i];
+					int j = i;
+					while (j > 0 && distances[j - 1] > dist) {
+						distances[j] = distances[j - 1];
+						order[j] = order[j - 1];
+						j--;
+					}
+					distances[j] = dist;
+					order[j] = index;
+				}
+				int n = 0;
+				for (int i = 0; i < count; i++) {
+					final int[] codes = keys[order[i]].codes;
+					for (int k = 0; k < codes.length && n < allKeys.length; k++) {
+						allKeys[n++] = codes[k];
+					}
+				}
+			}
+			return primaryIndex != PassCodeKeyboard.NOT_A_KEY ? primaryIndex : closestKey;
+		}
+
+		private static boolean isInside(Key key, int x, int y) {
+			final int edgeFlags = key.edgeFlags;
+			final int right = key.x + key.width;
+			final int bottom = key.y + key.height;
+			return (x >= key.x || ((edgeFlags & PassCodeKeyboard.EDGE_LEFT) > 0 && x <= right))
+					&& (x < right || ((edgeFlags & PassCodeKeyboard.EDGE_RIGHT) > 0 && x >= key.x))
+					&& (y >= key.y || ((edgeFlags & PassCodeKeyboard.EDGE_TOP) > 0 && y <= bottom))
+					&& (y < bottom || ((edgeFlags & PassCodeKeyboard.EDGE_BOTTOM) > 0 && y >= key.y));
+		}
+
+		private static int squaredDistanceFrom(Key key, int x, int y) {
+			final int xDist = key.x + key.width / 2 - x;
+			final int yDist = key.y + key.height / 2 - y;
+			return xDist * xDist + yDist * yDist;
+		}
+	}
+}